@@ -0,0 +1,26 @@
+package vtb.courses.stage2.benchmarks;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/** Точка входа benchmarks.jar - запускает JMH с профайлером GC, чтобы вместе со временем
+ *  выводилась и скорость выделения памяти (gc.alloc.rate.norm - байт на операцию)
+ * <p>   Принимает обычные параметры командной строки JMH, например <b>-f 1 -wi 2 -i 3 ProxyBenchmark</b>
+ */
+public class BenchmarkRunner {
+
+    public static void main(String[] args) throws Exception {
+        CommandLineOptions commandLine = new CommandLineOptions(args);
+        if (commandLine.shouldHelp() || commandLine.shouldList()) {
+            org.openjdk.jmh.Main.main(args);
+            return;
+        }
+        new Runner(new OptionsBuilder()
+                .parent(commandLine)
+                .addProfiler(GCProfiler.class)
+                .build())
+                .run();
+    }
+}
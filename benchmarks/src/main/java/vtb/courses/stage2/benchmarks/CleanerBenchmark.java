@@ -0,0 +1,92 @@
+package vtb.courses.stage2.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import vtb.courses.stage2.CacheStorage;
+import vtb.courses.stage2.CompositeKey;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.TimeUnit;
+
+/** Стоимость прохода очистки CacheStorage.clearTimeoutedValues() в зависимости от количества значений
+ * <p>   <b>nothingExpired</b> - ни одно значение ещё не истекло, проход не должен зависеть от размера хранилища;
+ *       <b>allExpired</b> - истекли все значения, проход удаляет каждое из них.
+ *       Хранилище для него заполняется заново перед каждым вызовом, поэтому замер одиночный
+ */
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(3)
+public class CleanerBenchmark {
+
+    @State(Scope.Thread)
+    public static class Entries {
+        @Param({"1000", "10000", "100000"})
+        public int entries;
+
+        Method method;
+        CompositeKey[] keys;
+
+        @Setup(Level.Trial)
+        public void setup() throws NoSuchMethodException {
+            method = ProxyBenchmark.Calculator.class.getMethod("square");
+            keys = new CompositeKey[entries];
+            for (int i = 0; i < entries; i++) {
+                keys[i] = CompositeKey.of(method, i, null);
+            }
+        }
+
+        CacheStorage fill(long ttl) {
+            CacheStorage storage = new CacheStorage();
+            for (int i = 0; i < entries; i++) {
+                storage.saveValue(method, keys[i], (long) i, ttl);
+            }
+            return storage;
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class LiveStorage {
+        CacheStorage storage;
+
+        @Setup(Level.Trial)
+        public void setup(Entries entries) {
+            storage = entries.fill(3600000);
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class ExpiredStorage {
+        CacheStorage storage;
+
+        @Setup(Level.Invocation)
+        public void setup(Entries entries) throws InterruptedException {
+            storage = entries.fill(1);
+            Thread.sleep(2);
+        }
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @Warmup(iterations = 3, time = 1)
+    @Measurement(iterations = 5, time = 1)
+    public long nothingExpired(LiveStorage live) {
+        return live.storage.clearTimeoutedValues();
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @Warmup(iterations = 20)
+    @Measurement(iterations = 50)
+    public long allExpired(ExpiredStorage expired) {
+        return expired.storage.clearTimeoutedValues();
+    }
+}
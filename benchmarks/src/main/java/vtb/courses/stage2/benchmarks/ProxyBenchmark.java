@@ -0,0 +1,93 @@
+package vtb.courses.stage2.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import vtb.courses.stage2.Cache;
+import vtb.courses.stage2.CacheInvocationHandler;
+import vtb.courses.stage2.Mutator;
+
+import java.util.concurrent.TimeUnit;
+
+/** Сравнение прямого вызова объекта с вызовом через прокси CacheInvocationHandler
+ * <p>   <b>hit</b> - значение берётся из кэша, <b>miss</b> - после @Mutator значение вычисляется заново,
+ *       <b>mutator</b> - только вызов изменяющего метода
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(3)
+public class ProxyBenchmark {
+
+    public interface Calculator {
+        long square();
+        void setSource(int source);
+    }
+
+    public static class CalculatorClass implements Calculator {
+        private int source = 12345;
+
+        @Override
+        @Cache(60000)
+        public long square() {
+            return (long) source * source;
+        }
+
+        @Override
+        @Mutator
+        public void setSource(int source) {
+            this.source = source;
+        }
+
+        @Override
+        public String toString() {
+            return "CalculatorClass{" + source + "}";
+        }
+    }
+
+    private Calculator direct;
+    private Calculator proxy;
+    private int source;
+
+    @Setup
+    public void setup() {
+        direct = new CalculatorClass();
+        proxy = new CacheInvocationHandler<Calculator>().cache(new CalculatorClass());
+        proxy.square();
+    }
+
+    @Benchmark
+    public long directCall() {
+        return direct.square();
+    }
+
+    @Benchmark
+    public long proxyHit() {
+        return proxy.square();
+    }
+
+    @Benchmark
+    public long proxyMiss() {
+        proxy.setSource(source++ & 1023);
+        return proxy.square();
+    }
+
+    @Benchmark
+    public void directMutator() {
+        direct.setSource(source++ & 1023);
+    }
+
+    @Benchmark
+    public void proxyMutator() {
+        proxy.setSource(source++ & 1023);
+    }
+}
@@ -0,0 +1,92 @@
+package vtb.courses.stage2.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import vtb.courses.stage2.CacheStorage;
+import vtb.courses.stage2.CompositeKey;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/** Чтение и запись CacheStorage при разном количестве ключей и потоков
+ * <p>   Ключи создаются заранее, чтобы измерялась работа хранилища, а не построение ключа.
+ *       Количество потоков задаётся аннотацией @Threads на каждом методе: 1, 4 и <b>max</b> - по числу доступных процессоров.
+ *       Для других значений - параметр JMH <b>-t</b>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(3)
+public class StorageBenchmark {
+
+    @Param({"16", "1024", "65536"})
+    public int cardinality;
+
+    private Method method;
+    private CacheStorage storage;
+    private CompositeKey[] keys;
+
+    @Setup
+    public void setup() throws NoSuchMethodException {
+        method = ProxyBenchmark.Calculator.class.getMethod("square");
+        storage = new CacheStorage();
+        keys = new CompositeKey[cardinality];
+        for (int i = 0; i < cardinality; i++) {
+            keys[i] = CompositeKey.of(method, i, null);
+            storage.saveValue(method, keys[i], (long) i, 60000);
+        }
+    }
+
+    private CompositeKey randomKey() {
+        return keys[ThreadLocalRandom.current().nextInt(cardinality)];
+    }
+
+    @Benchmark
+    @Threads(1)
+    public Object get_1() {
+        return storage.getCachedValue(method, randomKey());
+    }
+
+    @Benchmark
+    @Threads(4)
+    public Object get_4() {
+        return storage.getCachedValue(method, randomKey());
+    }
+
+    @Benchmark
+    @Threads(Threads.MAX)
+    public Object get_max() {
+        return storage.getCachedValue(method, randomKey());
+    }
+
+    @Benchmark
+    @Threads(1)
+    public void save_1() {
+        storage.saveValue(method, randomKey(), 1L, 60000);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void save_4() {
+        storage.saveValue(method, randomKey(), 1L, 60000);
+    }
+
+    @Benchmark
+    @Threads(Threads.MAX)
+    public void save_max() {
+        storage.saveValue(method, randomKey(), 1L, 60000);
+    }
+}
@@ -0,0 +1,468 @@
+package vtb.courses.stage2.processor;
+
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.Filer;
+import javax.annotation.processing.Messager;
+import javax.annotation.processing.ProcessingEnvironment;
+import javax.annotation.processing.RoundEnvironment;
+import javax.annotation.processing.SupportedAnnotationTypes;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.Modifier;
+import javax.lang.model.element.PackageElement;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.element.TypeParameterElement;
+import javax.lang.model.type.DeclaredType;
+import javax.lang.model.type.ExecutableType;
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.type.TypeMirror;
+import javax.lang.model.util.ElementFilter;
+import javax.lang.model.util.Elements;
+import javax.lang.model.util.Types;
+import javax.tools.Diagnostic;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.StringJoiner;
+
+/** Класс CachingProxyProcessor - процессор аннотаций, который на этапе компиляции генерирует
+ *  кэширующий класс для каждого класса с методами, помеченными <b>@Cache</b> или <b>@Mutator</b>
+ * <p>   Сгенерированный класс <b>&lt;Класс&gt;CachingProxy</b> лежит в том же пакете и реализует те же интерфейсы,
+ *       что и исходный класс. Методы с <b>@Cache</b> и <b>@Mutator</b> он передаёт в CacheInvocationHandler напрямую,
+ *       минуя java.lang.reflect.Proxy, а остальные методы вызывает на исходном объекте без всякой обработки.
+ *       Методы интерфейсов известны на этапе компиляции, поэтому в рантайме не нужно ни создавать прокси-класс,
+ *       ни искать методы, что ускоряет старт и подходит для AOT-компиляции
+ * <p>   Ключ кэша строится вариантом CompositeKey.of() по числу аргументов, аргументы int и long не упаковываются.
+ *       При попадании в кэш массив аргументов не создаётся и результат только распаковывается, исходный метод
+ *       и массив аргументов нужны только при промахе. equals(), hashCode() и toString() передаются исходному объекту,
+ *       как это делает java.lang.reflect.Proxy
+ * <p>   Для вложенных классов имена внешних классов соединяются через '_': CachableTest_CachableClassCachingProxy
+ */
+@SupportedAnnotationTypes({CachingProxyProcessor.CACHE, CachingProxyProcessor.MUTATOR})
+public class CachingProxyProcessor extends AbstractProcessor {
+    static final String CACHE = "vtb.courses.stage2.Cache";
+    static final String MUTATOR = "vtb.courses.stage2.Mutator";
+    static final String HANDLER = "vtb.courses.stage2.CacheInvocationHandler";
+    static final String KEY = "vtb.courses.stage2.CompositeKey";
+    static final String SUFFIX = "CachingProxy";
+
+    private Elements elements;
+    private Types types;
+    private Filer filer;
+    private Messager messager;
+    private final Set<String> generated = new LinkedHashSet<>();
+
+    @Override
+    public synchronized void init(ProcessingEnvironment processingEnv) {
+        super.init(processingEnv);
+        elements = processingEnv.getElementUtils();
+        types = processingEnv.getTypeUtils();
+        filer = processingEnv.getFiler();
+        messager = processingEnv.getMessager();
+    }
+
+    @Override
+    public SourceVersion getSupportedSourceVersion() {
+        return SourceVersion.latestSupported();
+    }
+
+    @Override
+    public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
+        Set<TypeElement> classes = new LinkedHashSet<>();
+        for (TypeElement annotation : annotations) {
+            for (Element element : roundEnv.getElementsAnnotatedWith(annotation)) {
+                Element enclosing = element.getEnclosingElement();
+                if (element.getKind() == ElementKind.METHOD && enclosing.getKind() == ElementKind.CLASS) {
+                    classes.add((TypeElement) enclosing);
+                }
+            }
+        }
+        for (TypeElement typeElement : classes) {
+            if (generated.add(typeElement.getQualifiedName().toString())) {
+                generate(typeElement);
+            }
+        }
+        return false;
+    }
+
+    private void generate(TypeElement typeElement) {
+        if (!isAccessible(typeElement)) {
+            messager.printMessage(Diagnostic.Kind.WARNING,
+                    "Кэширующий класс не создан: класс должен быть доступен из своего пакета", typeElement);
+            return;
+        }
+        List<DeclaredType> interfaces = new ArrayList<>();
+        for (TypeMirror interfaceType : typeElement.getInterfaces()) {
+            interfaces.add((DeclaredType) interfaceType);
+        }
+        if (interfaces.isEmpty()) {
+            messager.printMessage(Diagnostic.Kind.WARNING,
+                    "Кэширующий класс не создан: класс не реализует ни одного интерфейса", typeElement);
+            return;
+        }
+
+        String packageName = ((PackageElement) packageOf(typeElement)).getQualifiedName().toString();
+        String simpleName = flatName(typeElement) + SUFFIX;
+        String typeParameters = typeParameters(typeElement.getTypeParameters());
+        String typeArguments = typeArguments(typeElement.getTypeParameters());
+        String targetType = typeElement.getQualifiedName() + typeArguments;
+
+        Map<String, ProxyMethod> methods = collectMethods(typeElement, interfaces);
+        String qualifiedName = packageName.isEmpty() ? simpleName : packageName + "." + simpleName;
+        try (PrintWriter out = new PrintWriter(filer.createSourceFile(qualifiedName, typeElement).openWriter())) {
+            if (!packageName.isEmpty()) {
+                out.println("package " + packageName + ";");
+                out.println();
+            }
+            out.println("@javax.annotation.processing.Generated(\"" + getClass().getName() + "\")");
+            out.println("@SuppressWarnings(\"unchecked\")");
+            StringJoiner implemented = new StringJoiner(", ");
+            interfaces.forEach(i -> implemented.add(i.toString()));
+            out.println("public final class " + simpleName + typeParameters + " implements " + implemented + " {");
+
+            int index = 0;
+            for (ProxyMethod method : methods.values()) {
+                if (method.intercepted) {
+                    method.field = "METHOD_" + index++;
+                    out.println("    private static final java.lang.reflect.Method " + method.field + ";");
+                }
+            }
+            if (index > 0) {
+                out.println();
+                out.println("    static {");
+                out.println("        try {");
+                for (ProxyMethod method : methods.values()) {
+                    if (method.intercepted) {
+                        out.println("            " + method.field + " = " + method.lookup() + ";");
+                    }
+                }
+                out.println("        } catch (NoSuchMethodException e) {");
+                out.println("            throw new ExceptionInInitializerError(e);");
+                out.println("        }");
+                out.println("    }");
+            }
+
+            out.println();
+            out.println("    private final " + targetType + " target;");
+            out.println("    private final " + HANDLER + "<" + targetType + "> handler;");
+            // метод проксируемого объекта для ключей кэша: зависит от класса объекта, поэтому определяется в конструкторе
+            for (ProxyMethod method : methods.values()) {
+                if (method.cached) {
+                    out.println("    private final java.lang.reflect.Method " + method.keyField() + ";");
+                }
+            }
+            out.println();
+            out.println("    public " + simpleName + "(" + targetType + " target) {");
+            out.println("        this(target, new " + HANDLER + "<>());");
+            out.println("    }");
+            out.println();
+            out.println("    public " + simpleName + "(" + targetType + " target, " + HANDLER + "<" + targetType + "> handler) {");
+            out.println("        this.target = target;");
+            out.println("        this.handler = handler.bind(target);");
+            for (ProxyMethod method : methods.values()) {
+                if (method.cached) {
+                    out.println("        this." + method.keyField() + " = this.handler.keyMethod(" + method.field + ");");
+                }
+            }
+            out.println("    }");
+
+            for (ProxyMethod method : methods.values()) {
+                out.println();
+                method.write(out);
+            }
+            writeObjectMethods(out, methods);
+            out.println("}");
+        } catch (IOException e) {
+            messager.printMessage(Diagnostic.Kind.ERROR, "Не удалось создать " + qualifiedName + ": " + e.getMessage(), typeElement);
+        }
+    }
+
+    // equals(), hashCode() и toString() передаются исходному объекту, если их не объявил один из интерфейсов
+    private static void writeObjectMethods(PrintWriter out, Map<String, ProxyMethod> methods) {
+        if (!methods.containsKey("equals(java.lang.Object)")) {
+            out.println();
+            out.println("    @Override");
+            out.println("    public boolean equals(java.lang.Object other) {");
+            out.println("        return target.equals(other);");
+            out.println("    }");
+        }
+        if (!methods.containsKey("hashCode()")) {
+            out.println();
+            out.println("    @Override");
+            out.println("    public int hashCode() {");
+            out.println("        return target.hashCode();");
+            out.println("    }");
+        }
+        if (!methods.containsKey("toString()")) {
+            out.println();
+            out.println("    @Override");
+            out.println("    public java.lang.String toString() {");
+            out.println("        return target.toString();");
+            out.println("    }");
+        }
+    }
+
+    // Методы всех интерфейсов класса, без повторов, с типами, подставленными для конкретного интерфейса
+    private Map<String, ProxyMethod> collectMethods(TypeElement typeElement, List<DeclaredType> interfaces) {
+        Map<String, ProxyMethod> methods = new LinkedHashMap<>();
+        List<ExecutableElement> classMethods = ElementFilter.methodsIn(elements.getAllMembers(typeElement));
+        for (DeclaredType interfaceType : interfaces) {
+            TypeElement interfaceElement = (TypeElement) interfaceType.asElement();
+            for (ExecutableElement method : ElementFilter.methodsIn(elements.getAllMembers(interfaceElement))) {
+                if (method.getModifiers().contains(Modifier.STATIC)
+                        || ((TypeElement) method.getEnclosingElement()).getQualifiedName().contentEquals("java.lang.Object")) {
+                    continue;
+                }
+                ExecutableType type = (ExecutableType) types.asMemberOf(interfaceType, method);
+                ProxyMethod proxyMethod = new ProxyMethod(interfaceType, method, type);
+                if (methods.containsKey(proxyMethod.signature())) {
+                    continue;
+                }
+                ExecutableElement implementation = findImplementation(typeElement, classMethods, method);
+                proxyMethod.intercepted = implementation != null
+                        && (hasAnnotation(implementation, CACHE) || hasAnnotation(implementation, MUTATOR));
+                proxyMethod.cached = implementation != null && hasAnnotation(implementation, CACHE)
+                        && type.getReturnType().getKind() != TypeKind.VOID;
+                methods.put(proxyMethod.signature(), proxyMethod);
+            }
+        }
+        return methods;
+    }
+
+    private ExecutableElement findImplementation(TypeElement typeElement, List<ExecutableElement> classMethods, ExecutableElement method) {
+        for (ExecutableElement candidate : classMethods) {
+            if (candidate.getSimpleName().equals(method.getSimpleName())
+                    && (candidate.equals(method) || elements.overrides(candidate, method, typeElement))) {
+                return candidate;
+            }
+        }
+        return null;
+    }
+
+    private static boolean hasAnnotation(Element element, String annotation) {
+        return element.getAnnotationMirrors().stream()
+                .anyMatch(mirror -> ((TypeElement) mirror.getAnnotationType().asElement()).getQualifiedName().contentEquals(annotation));
+    }
+
+    // Класс и все внешние классы не должны быть private, вложенные классы - только static
+    private static boolean isAccessible(TypeElement typeElement) {
+        for (Element element = typeElement; element.getKind() != ElementKind.PACKAGE; element = element.getEnclosingElement()) {
+            if (element.getModifiers().contains(Modifier.PRIVATE)) {
+                return false;
+            }
+            if (element.getKind() == ElementKind.CLASS && element.getEnclosingElement().getKind() != ElementKind.PACKAGE
+                    && !element.getModifiers().contains(Modifier.STATIC)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static Element packageOf(Element element) {
+        while (element.getKind() != ElementKind.PACKAGE) {
+            element = element.getEnclosingElement();
+        }
+        return element;
+    }
+
+    private static String flatName(TypeElement typeElement) {
+        StringBuilder name = new StringBuilder(typeElement.getSimpleName());
+        for (Element element = typeElement.getEnclosingElement(); element.getKind() != ElementKind.PACKAGE; element = element.getEnclosingElement()) {
+            name.insert(0, element.getSimpleName() + "_");
+        }
+        return name.toString();
+    }
+
+    private static String typeParameters(List<? extends TypeParameterElement> parameters) {
+        if (parameters.isEmpty()) {
+            return "";
+        }
+        StringJoiner joiner = new StringJoiner(", ", "<", ">");
+        for (TypeParameterElement parameter : parameters) {
+            StringJoiner bounds = new StringJoiner(" & ");
+            for (TypeMirror bound : parameter.getBounds()) {
+                if (!bound.toString().equals("java.lang.Object")) {
+                    bounds.add(bound.toString());
+                }
+            }
+            joiner.add(bounds.length() == 0 ? parameter.getSimpleName() : parameter.getSimpleName() + " extends " + bounds);
+        }
+        return joiner.toString();
+    }
+
+    private static String typeArguments(List<? extends TypeParameterElement> parameters) {
+        if (parameters.isEmpty()) {
+            return "";
+        }
+        StringJoiner joiner = new StringJoiner(", ", "<", ">");
+        parameters.forEach(parameter -> joiner.add(parameter.getSimpleName()));
+        return joiner.toString();
+    }
+
+    private static String boxed(TypeMirror type) {
+        switch (type.getKind()) {
+            case BOOLEAN: return "java.lang.Boolean";
+            case BYTE: return "java.lang.Byte";
+            case SHORT: return "java.lang.Short";
+            case INT: return "java.lang.Integer";
+            case LONG: return "java.lang.Long";
+            case CHAR: return "java.lang.Character";
+            case FLOAT: return "java.lang.Float";
+            case DOUBLE: return "java.lang.Double";
+            default: return type.toString();
+        }
+    }
+
+    /** Метод интерфейса, для которого генерируется реализация
+     */
+    private class ProxyMethod {
+        private final DeclaredType interfaceType;
+        private final ExecutableElement element;
+        private final ExecutableType type;
+        private boolean intercepted;
+        // метод с @Cache: значение ищется в кэше без вызова invoke()
+        private boolean cached;
+        private String field;
+
+        ProxyMethod(DeclaredType interfaceType, ExecutableElement element, ExecutableType type) {
+            this.interfaceType = interfaceType;
+            this.element = element;
+            this.type = type;
+        }
+
+        String name() {
+            return element.getSimpleName().toString();
+        }
+
+        String keyField() {
+            return "key" + field.substring(field.lastIndexOf('_') + 1);
+        }
+
+        // Вариант CompositeKey.of() по числу и типам аргументов: без массива, int и long - без упаковки
+        String key(List<String> arguments) {
+            String prefix = KEY + ".";
+            String common = keyField() + ", handler.stateKey()";
+            switch (arguments.size()) {
+                case 0:
+                    return prefix + "of(" + common + ")";
+                case 1:
+                    TypeKind kind = type.getParameterTypes().get(0).getKind();
+                    return prefix + (kind == TypeKind.INT || kind == TypeKind.LONG ? "of(" : "ofArg(") + common + ", " + arguments.get(0) + ")";
+                case 2:
+                    return prefix + "ofArgs(" + common + ", " + arguments.get(0) + ", " + arguments.get(1) + ")";
+                default:
+                    return prefix + "of(" + common + ", args)";
+            }
+        }
+
+        String signature() {
+            StringJoiner joiner = new StringJoiner(",", name() + "(", ")");
+            type.getParameterTypes().forEach(parameter -> joiner.add(types.erasure(parameter).toString()));
+            return joiner.toString();
+        }
+
+        // Поиск java.lang.reflect.Method интерфейса, он же ключ в карте методов CacheInvocationHandler
+        String lookup() {
+            StringBuilder lookup = new StringBuilder(types.erasure(interfaceType) + ".class.getMethod(\"" + name() + "\"");
+            for (TypeMirror parameter : element.getParameters().stream().map(Element::asType).toList()) {
+                lookup.append(", ").append(types.erasure(parameter)).append(".class");
+            }
+            return lookup.append(")").toString();
+        }
+
+        void write(PrintWriter out) {
+            List<? extends TypeMirror> parameterTypes = type.getParameterTypes();
+            StringJoiner parameters = new StringJoiner(", ");
+            StringJoiner arguments = new StringJoiner(", ");
+            List<String> argumentNames = new ArrayList<>();
+            for (int i = 0; i < parameterTypes.size(); i++) {
+                String parameterType = parameterTypes.get(i).toString();
+                if (element.isVarArgs() && i == parameterTypes.size() - 1) {
+                    parameterType = parameterType.substring(0, parameterType.length() - 2) + "...";
+                }
+                parameters.add(parameterType + " arg" + i);
+                arguments.add("arg" + i);
+                argumentNames.add("arg" + i);
+            }
+            StringJoiner thrown = new StringJoiner(", ", " throws ", "");
+            thrown.setEmptyValue("");
+            type.getThrownTypes().forEach(thrownType -> thrown.add(thrownType.toString()));
+            TypeMirror returnType = type.getReturnType();
+            boolean isVoid = returnType.getKind() == TypeKind.VOID;
+
+            out.println("    @Override");
+            out.println("    public " + typeParameters(element.getTypeParameters()) + (element.getTypeParameters().isEmpty() ? "" : " ")
+                    + returnType + " " + name() + "(" + parameters + ")" + thrown + " {");
+            if (!intercepted) {
+                out.println("        " + (isVoid ? "" : "return ") + "target." + name() + "(" + arguments + ");");
+                out.println("    }");
+                return;
+            }
+            String args = parameterTypes.isEmpty() ? "null" : "new Object[]{" + arguments + "}";
+            if (cached) {
+                // попадание в кэш: ни массива аргументов, ни упаковки результата
+                if (parameterTypes.size() > 2) {
+                    out.println("        Object[] args = " + args + ";");
+                    args = "args";
+                }
+                out.println("        " + KEY + " key = " + key(argumentNames) + ";");
+                out.println("        java.lang.Object value = handler.getIfPresent(" + field + ", key);");
+                out.println("        if (value != " + HANDLER + ".MISS) {");
+                out.println("            return (" + boxed(returnType) + ") value;");
+                out.println("        }");
+            }
+            out.println("        try {");
+            if (isVoid) {
+                out.println("            handler.invoke(this, " + field + ", " + args + ");");
+            } else if (cached) {
+                out.println("            return (" + boxed(returnType) + ") handler.loadValue(" + field + ", key, " + args + ");");
+            } else {
+                out.println("            return (" + boxed(returnType) + ") handler.invoke(this, " + field + ", " + args + ");");
+            }
+            out.println("        } catch (RuntimeException | Error e) {");
+            out.println("            throw e;");
+            List<TypeMirror> checked = checkedExceptions(type.getThrownTypes());
+            boolean throwsThrowable = false;
+            for (TypeMirror exception : checked) {
+                throwsThrowable |= exception.toString().equals("java.lang.Throwable");
+                out.println("        } catch (" + exception + " e) {");
+                out.println("            throw e;");
+            }
+            if (!throwsThrowable) {
+                out.println("        } catch (Throwable e) {");
+                out.println("            throw new java.lang.reflect.UndeclaredThrowableException(e);");
+            }
+            out.println("        }");
+            out.println("    }");
+        }
+
+        // Проверяемые исключения без повторов: если объявлено и исключение, и его предок, ловится только предок
+        private List<TypeMirror> checkedExceptions(List<? extends TypeMirror> thrownTypes) {
+            TypeMirror runtimeException = elements.getTypeElement("java.lang.RuntimeException").asType();
+            TypeMirror error = elements.getTypeElement("java.lang.Error").asType();
+            List<TypeMirror> checked = new ArrayList<>();
+            for (TypeMirror thrownType : thrownTypes) {
+                if (types.isSubtype(thrownType, runtimeException) || types.isSubtype(thrownType, error)) {
+                    continue;
+                }
+                boolean covered = false;
+                for (TypeMirror other : thrownTypes) {
+                    if (other != thrownType && types.isSubtype(thrownType, other) && !types.isSameType(thrownType, other)) {
+                        covered = true;
+                    }
+                }
+                if (!covered) {
+                    checked.add(thrownType);
+                }
+            }
+            return checked;
+        }
+    }
+}
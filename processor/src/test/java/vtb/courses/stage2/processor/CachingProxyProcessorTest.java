@@ -0,0 +1,106 @@
+package vtb.courses.stage2.processor;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import vtb.courses.stage2.CacheInvocationHandler;
+
+import javax.tools.JavaCompiler;
+import javax.tools.StandardJavaFileManager;
+import javax.tools.ToolProvider;
+import java.io.File;
+import java.lang.reflect.Proxy;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+public class CachingProxyProcessorTest {
+
+    private static final String COUNTER = String.join("\n",
+            "package sample;",
+            "public interface Counter {",
+            "    long square();",
+            "    long multiply(int a, int b) throws java.io.IOException;",
+            "    long cube(long a);",
+            "    String join(String a, String b, String c);",
+            "    void setValue(int value);",
+            "    int getCalls();",
+            "}");
+
+    private static final String COUNTER_IMPL = String.join("\n",
+            "package sample;",
+            "import vtb.courses.stage2.Cache;",
+            "import vtb.courses.stage2.Mutator;",
+            "public class CounterImpl implements Counter {",
+            "    private int value = 3;",
+            "    private int calls;",
+            "    @Cache(1000) public long square() { calls++; return (long) value * value; }",
+            "    @Cache(1000) public long multiply(int a, int b) { calls++; return (long) a * b * value; }",
+            "    @Cache(1000) public long cube(long a) { calls++; return a * a * a; }",
+            "    @Cache(1000) public String join(String a, String b, String c) { calls++; return a + b + c; }",
+            "    @Mutator public void setValue(int value) { this.value = value; }",
+            "    public int getCalls() { return calls; }",
+            "    public String toString() { return \"CounterImpl{\" + value + \"}\"; }",
+            "}");
+
+    @Test
+    @DisplayName("Процессор генерирует кэширующий класс без java.lang.reflect.Proxy")
+    public void generatedProxyCaches(@TempDir Path dir) throws Exception {
+        Path sources = Files.createDirectories(dir.resolve("src/sample"));
+        Path classes = Files.createDirectories(dir.resolve("classes"));
+        Files.writeString(sources.resolve("Counter.java"), COUNTER);
+        Files.writeString(sources.resolve("CounterImpl.java"), COUNTER_IMPL);
+
+        System.out.println("Компилируем пример с процессором аннотаций");
+        JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+        String classpath = new File(CacheInvocationHandler.class.getProtectionDomain().getCodeSource().getLocation().toURI()).getPath();
+        try (StandardJavaFileManager fileManager = compiler.getStandardFileManager(null, null, null)) {
+            JavaCompiler.CompilationTask task = compiler.getTask(null, fileManager, null,
+                    List.of("-classpath", classpath, "-d", classes.toString(), "-s", classes.toString()),
+                    null,
+                    fileManager.getJavaFileObjects(sources.resolve("Counter.java").toFile(), sources.resolve("CounterImpl.java").toFile()));
+            task.setProcessors(List.of(new CachingProxyProcessor()));
+            Assertions.assertTrue(task.call(), "Сгенерированный код не скомпилировался");
+        }
+        Assertions.assertTrue(Files.exists(classes.resolve("sample/CounterImplCachingProxy.java")), "Кэширующий класс не сгенерирован");
+
+        try (URLClassLoader loader = new URLClassLoader(new URL[]{classes.toUri().toURL()}, getClass().getClassLoader())) {
+            Class<?> counterClass = loader.loadClass("sample.Counter");
+            Object target = loader.loadClass("sample.CounterImpl").getConstructor().newInstance();
+            Object proxy = loader.loadClass("sample.CounterImplCachingProxy")
+                    .getConstructor(target.getClass()).newInstance(target);
+            Assertions.assertFalse(Proxy.isProxyClass(proxy.getClass()), "Должен использоваться сгенерированный класс, а не Proxy");
+
+            System.out.println("Повторный вызов кэшируемого метода не доходит до объекта");
+            Assertions.assertEquals(9L, counterClass.getMethod("square").invoke(proxy));
+            Assertions.assertEquals(9L, counterClass.getMethod("square").invoke(proxy));
+            Assertions.assertEquals(1, counterClass.getMethod("getCalls").invoke(proxy), "Кэш сгенерированного класса не сработал");
+
+            System.out.println("Аргументы учитываются в ключе кэша");
+            Assertions.assertEquals(18L, counterClass.getMethod("multiply", int.class, int.class).invoke(proxy, 2, 3));
+            Assertions.assertEquals(18L, counterClass.getMethod("multiply", int.class, int.class).invoke(proxy, 2, 3));
+            Assertions.assertEquals(24L, counterClass.getMethod("multiply", int.class, int.class).invoke(proxy, 2, 4));
+            Assertions.assertEquals(3, counterClass.getMethod("getCalls").invoke(proxy));
+
+            System.out.println("Один примитивный аргумент и больше двух аргументов");
+            Assertions.assertEquals(27L, counterClass.getMethod("cube", long.class).invoke(proxy, 3L));
+            Assertions.assertEquals(27L, counterClass.getMethod("cube", long.class).invoke(proxy, 3L));
+            Assertions.assertEquals("abc", counterClass.getMethod("join", String.class, String.class, String.class).invoke(proxy, "a", "b", "c"));
+            Assertions.assertEquals("abc", counterClass.getMethod("join", String.class, String.class, String.class).invoke(proxy, "a", "b", "c"));
+            Assertions.assertEquals(5, counterClass.getMethod("getCalls").invoke(proxy), "Кэш сгенерированного класса не сработал");
+
+            System.out.println("После вызова @Mutator значение пересчитывается");
+            counterClass.getMethod("setValue", int.class).invoke(proxy, 5);
+            Assertions.assertEquals(25L, counterClass.getMethod("square").invoke(proxy));
+            Assertions.assertEquals(6, counterClass.getMethod("getCalls").invoke(proxy));
+
+            System.out.println("equals(), hashCode() и toString() передаются исходному объекту");
+            Assertions.assertEquals("CounterImpl{5}", proxy.toString(), "toString() не передан исходному объекту");
+            Assertions.assertEquals(target.hashCode(), proxy.hashCode(), "hashCode() не передан исходному объекту");
+            Assertions.assertTrue(proxy.equals(target), "equals() не передан исходному объекту");
+        }
+    }
+}
@@ -5,8 +5,46 @@ import java.lang.annotation.Retention;
 import java.lang.annotation.RetentionPolicy;
 import java.lang.annotation.Target;
 
+/** Метод, помеченный аннотацией <b>@Cache</b>, кэшируется прокси {@link CacheInvocationHandler}
+ * <p>   value - время жизни значения в миллисекундах с момента последнего обращения, 0 - без ограничения
+ * <p>   maxSize - максимальное количество значений метода в кэше, 0 - без ограничения
+ * <p>   maxWeight - максимальный суммарный вес значений метода, вес считает weigher. 0 - без ограничения
+ * <p>   loadTimeout - сколько миллисекунд ждать значение, которое уже вычисляется другим потоком.
+ *       По истечении поток вычисляет значение сам. 0 - ждать без ограничения.
+ *       Для методов, возвращающих CompletableFuture/CompletionStage, - сколько ждать завершения future метода:
+ *       по истечении вызовы по ключу получают TimeoutException, а следующий вызов вычисляет значение заново
+ * <p>   refreshAfter - через сколько миллисекунд после вычисления значение обновляется заранее: обращение к нему
+ *       возвращает текущее значение сразу, а новое вычисляется асинхронно. 0 - не обновлять, ждать истечения value
+ * <p>   offHeapThreshold - значения, которые в сериализованном виде занимают не меньше указанного числа байт,
+ *       хранятся вне кучи и не нагружают сборщик мусора. 0 - все значения хранятся в куче
+ * <p>   offHeapCapacity - сколько байт памяти вне кучи может занять метод. При нехватке вытесняются самые старые значения
+ * <p>   serializer - сериализация значений, хранящихся вне кучи
+ * <p>   group - имя группы, по которому метод можно указать в <b>@Mutator(invalidates)</b> вместо имени метода
+ * <p>   region - имя общего региона {@link CacheRegions}: значения метода используются всеми прокси,
+ *       объекты которых находятся в одинаковом состоянии. Пустое имя - у каждого прокси свой кэш
+ */
 @Target(ElementType.METHOD)
 @Retention(RetentionPolicy.RUNTIME)
 public @interface Cache {
     int value() default 0;
+
+    long maxSize() default 0;
+
+    long maxWeight() default 0;
+
+    Class<? extends Weigher> weigher() default Weigher.Unit.class;
+
+    long loadTimeout() default 0;
+
+    long refreshAfter() default 0;
+
+    long offHeapThreshold() default 0;
+
+    long offHeapCapacity() default 64 * 1024 * 1024;
+
+    Class<? extends ValueSerializer> serializer() default ValueSerializer.Java.class;
+
+    String group() default "";
+
+    String region() default "";
 }
@@ -1,77 +1,109 @@
 package vtb.courses.stage2;
 
-import java.util.HashSet;
-import java.util.Set;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import static java.lang.System.nanoTime;
 
-/** Класс CacheCleaner собственно реализует поток сборки мусора
- *  Поток автоматически запускается при создании объекта
+/** Класс CacheCleaner собственно реализует сборку мусора
+ *  Очистка выполняется планировщиком в отдельном daemon-потоке, который не мешает завершению JVM
+ *  и может быть остановлен методом <b>shutdown()</b>
  *  Стратегия сборки мусора - интеравальная сборка,
  *  т.к. нет ни каких оснований строить предположения об интенсивности использования кэша
- *  Длина интервала определяется как минимальное время жизни объектов в очищаемых кэшах
- *  При этом каждый из очищаемых кешей чистится не чаще чем минимальное время жизни его объектов
+ *  Каждый из очищаемых кешей чистится не чаще чем минимальное время жизни его объектов,
+ *  пока значений с ограниченным временем жизни нет - раз в секунду
+ *  Сам проход очистки стоит O(истекающих значений), т.к. хранилище раскладывает значения по колесу таймеров
+ *  Длительность проходов и количество просмотренных значений собирает {@link CacheStats#cleanerStats()}
  */
 
-public class CacheCleaner extends Thread {
-    private final Set<CacheStorageItem> cacheStorages;
+public class CacheCleaner {
+    private static final long DEFAULT_PERIOD = 1000;
 
-    // здесь будем расчитывать минимальный период запуска цикла очистки
-    private long minTtl = Long.MAX_VALUE;
+    private final Map<CacheStorage, CacheStorageItem> cacheStorages;
+    private final ScheduledThreadPoolExecutor scheduler;
 
     public CacheCleaner() {
-        cacheStorages = new HashSet<>();
-        this.start();
+        cacheStorages = new ConcurrentHashMap<>();
+        scheduler = new ScheduledThreadPoolExecutor(1, runnable -> {
+            Thread thread = new Thread(runnable, "cache-cleaner");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.setRemoveOnCancelPolicy(true);
     }
 
     public void addCacheStorage(CacheStorage cacheStorage) {
-        cacheStorages.add(new CacheStorageItem(cacheStorage));
-        minTtl = Long.min(minTtl, cacheStorage.getMinTtl());
+        CacheStorageItem cacheStorageItem = new CacheStorageItem(cacheStorage);
+        if (cacheStorages.putIfAbsent(cacheStorage, cacheStorageItem) == null) {
+            cacheStorageItem.schedule();
+        }
     }
 
-    private void clearCache(CacheStorageItem cacheStorageItem) {
-        minTtl = Long.min(minTtl, cacheStorageItem.cacheStorage.getMinTtl());
-        if (nanoTime() - cacheStorageItem.lastProcessed > 1000000L * cacheStorageItem.cacheStorage.getMinTtl()) {
-            cacheStorageItem.cacheStorage.clearTimeoutedValues();
-            cacheStorageItem.lastProcessed = nanoTime();
+    public void removeCacheStorage(CacheStorage cacheStorage) {
+        CacheStorageItem cacheStorageItem = cacheStorages.remove(cacheStorage);
+        if (cacheStorageItem != null) {
+            cacheStorageItem.cancel();
         }
     }
 
-    @Override
-    public void run() {
-        while (true) {
-            // запускаем процесс очистки кеша и фиксируем его длительность
-            long startClearing = nanoTime();
-            cacheStorages.iterator().forEachRemaining(this::clearCache);
-
-            // определяем сколько будем спать, с корректировкой на время затраченное на очистку
-            long timeToSleep;
-            if (minTtl == Long.MAX_VALUE) {
-                timeToSleep = 1000;
-            } else {
-                timeToSleep = minTtl;
-            }
-            timeToSleep = timeToSleep - (nanoTime() - startClearing)/1000000L;
+    public void shutdown() {
+        scheduler.shutdownNow();
+        cacheStorages.clear();
+    }
 
-            // спим до начала следующей итерации, если осталось время
-            if (timeToSleep > 0) {
-                System.out.println("Thread sleep " + timeToSleep);
-                try {
-                    Thread.sleep(timeToSleep);
-                } catch (InterruptedException e) {
-                    break;
-                }
-            }
-        }
+    public boolean isShutdown() {
+        return scheduler.isShutdown();
     }
 
-    class CacheStorageItem {
+    class CacheStorageItem implements Runnable {
         private final CacheStorage cacheStorage;
         private long lastProcessed;
+        private volatile ScheduledFuture<?> future;
 
         public CacheStorageItem(CacheStorage cacheStorage) {
             this.cacheStorage = cacheStorage;
             this.lastProcessed = nanoTime();
         }
+
+        // период очистки пересчитывается на каждом шаге: минимальное время жизни хранилища меняется по мере записи значений
+        private long period() {
+            long minTtl = cacheStorage.getMinTtl();
+            return minTtl == Long.MAX_VALUE ? DEFAULT_PERIOD : minTtl;
+        }
+
+        void schedule() {
+            if (!scheduler.isShutdown() && cacheStorages.get(cacheStorage) == this) {
+                // спим до начала следующей итерации, с корректировкой на время, прошедшее с прошлой очистки
+                long delay = Long.max(0, 1000000L * period() - (nanoTime() - lastProcessed));
+                try {
+                    future = scheduler.schedule(this, delay, TimeUnit.NANOSECONDS);
+                } catch (RejectedExecutionException e) {
+                    // планировщик остановлен между проверкой и постановкой задачи
+                }
+            }
+        }
+
+        void cancel() {
+            ScheduledFuture<?> scheduled = future;
+            if (scheduled != null) {
+                scheduled.cancel(false);
+            }
+        }
+
+        @Override
+        public void run() {
+            try {
+                long start = nanoTime();
+                long scanned = cacheStorage.clearTimeoutedValues();
+                lastProcessed = nanoTime();
+                CacheStats.recordCleanerPass(lastProcessed - start, scanned);
+            } finally {
+                schedule();
+            }
+        }
     }
 }
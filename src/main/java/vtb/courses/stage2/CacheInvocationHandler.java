@@ -1,11 +1,39 @@
 package vtb.courses.stage2;
 
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.ref.Cleaner;
 import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.HashMap;
-import java.lang.System;
+import java.util.IdentityHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Collectors;
+
+import vtb.courses.stage2.CacheStorage.TimedValue;
+
+import static java.lang.System.nanoTime;
 
 /**
  *  Класс <b>CacheInvocationHandler</b> перехватывает вызовы методов интерфейса T прокси-объекта
@@ -13,33 +41,217 @@ import java.util.Map;
  *  Делает перевызов интерфейсных методов, помеченных аннотацией <b>@Cache</b>, исходного объекта <b>cachableObject</b>
  *  только в том случае, если состояние объекта было изменено или объект находся в исходном состоянии.
  *  Изменение объекта определяется фиксацией вызовов интерфейсных методов помеченных аннотацией <b>@Mutator</b>.
+ *  Признак изменения ведётся для каждого кэшируемого метода отдельно: <b>@Mutator(invalidates)</b> сбрасывает
+ *  кэш только перечисленных методов или групп, без списка - всех кэшируемых методов.
  *  Остальные интерфейсный методы перевызываются на исходном объекте без изменения логики работы.
  *  <p>
  *  Для того чтобы начать отслеживать и кэшировать объект, используется метод <b>cache()</b>
  *  <p>
+ *  Прокси можно использовать из нескольких потоков: признак изменения объекта и карта методов потокобезопасны.
+ *  Если значение уже вычисляется в другом потоке, вызов дожидается его результата вместо повторного вызова метода
+ *  (синхронный метод - не дольше <b>@Cache(loadTimeout)</b>, после чего вычисляет сам). Исключение вычисляющего потока получают все ожидавшие.
+ *  Future асинхронного метода ждут не дольше loadTimeout, после чего вызовы по ключу получают TimeoutException.
+ *  Количество таких объединённых вызовов через этот обработчик возвращает <b>getCoalescedCalls()</b>,
+ *  по всем прокси класса - {@link CacheStats#getCoalescedCalls()} метода
+ *  <p>
+ *  Для методов с <b>@Cache(refreshAfter)</b> значение старше refreshAfter возвращается сразу, а новое вычисляется
+ *  асинхронно на refreshExecutor (по умолчанию - виртуальные потоки, если они есть в JVM, иначе daemon-потоки).
+ *  Через один прокси одновременно выполняется не больше maxRefreshes обновлений, остальные пропускаются
+ *  до следующего обращения. Ограничение действует на каждый обработчик отдельно, а не на всю JVM:
+ *  общий предел задаётся размером пула, переданного в <b>setRefreshExecutor()</b>.
+ *  Если пока значение обновлялось состояние объекта изменилось, результат обновления отбрасывается
+ *  <p>
+ *  Попадания, промахи, инвалидации и время вычисления значений учитываются в {@link CacheStats} метода
+ *  <p>
+ *  Значения методов с <b>@Cache(region)</b> хранятся в общем для всех прокси регионе {@link CacheRegions}.
+ *  Когда обработчик собран сборщиком мусора, его хранилище снимается с очистки, а регионы освобождаются
+ *  <p>
+ *  Второй уровень кэша {@link CacheTier} подключается через <b>setRemoteTier()</b>: при промахе значение сначала
+ *  ищется в нём, попадание в первый уровень по-прежнему не выходит за пределы процесса
+ *  <p>
+ *  Для вызова одного метода у множества прокси есть пакетный <b>getAll()</b>: попадания разрешаются одним проходом,
+ *  промахи вычисляются параллельно и сохраняются пакетом
+ *  <p>
+ *  Кэшируемые методы, возвращающие CompletableFuture или CompletionStage, не блокируют вызывающий поток:
+ *  одновременные вызовы получают копии одного future, в кэш попадает его результат, а ошибка не кэшируется
+ *  <p>
  *  Идея позаимствована тут <a href="https://javarush.com/groups/posts/2281-dinamicheskie-proksi">https://javarush.com/groups/posts/2281-dinamicheskie-proksi</a>
  */
 public class CacheInvocationHandler<T> implements InvocationHandler {
     private T cachedObject;
-    private boolean cachedObjectChanged;
     private final CacheStorage lastValues;
     private final Map<Method, CachedObjectMethod> methodMap;
+    // быстрый поиск по ссылке на Method: Proxy и сгенерированные классы передают в invoke() всегда один и тот же экземпляр
+    private volatile MethodIndex methodIndex = MethodIndex.EMPTY;
+    // кэшируемые методы объекта, их инвалидирует @Mutator без списка invalidates
+    private volatile List<CachedObjectMethod> cachedMethods = List.of();
+    private StateKeyExtractor stateKeyExtractor;
+    private final CacheRegions.Lease regions = new CacheRegions.Lease();
+    private boolean cleanupRegistered;
 
     private static CacheCleaner cacheCleaner;
+    private static Executor defaultRefreshExecutor;
+
+    private Executor refreshExecutor;
+    // продолжения асинхронных методов: на refreshExecutor, а если он отказал - в завершившем future потоке
+    private final Executor completionExecutor = task -> {
+        try {
+            (refreshExecutor != null ? refreshExecutor : getDefaultRefreshExecutor()).execute(task);
+        } catch (RejectedExecutionException e) {
+            task.run();
+        }
+    };
+    // меняется из любого потока и читается потоками вызова без блокировки
+    private volatile int maxRefreshes = 64;
+    private final AtomicInteger refreshesInFlight = new AtomicInteger();
+    private final LongAdder coalescedCalls = new LongAdder();
+
+    // методы Object, вызовы которых Proxy также передаёт обработчику
+    private static final Method[] OBJECT_METHODS;
+    private static final Object[] NO_ARGS = new Object[0];
+    // результат getIfPresent() при промахе: null - допустимое значение кэша
+    public static final Object MISS = new Object();
+
+    static {
+        try {
+            OBJECT_METHODS = new Method[]{
+                    Object.class.getMethod("equals", Object.class),
+                    Object.class.getMethod("hashCode"),
+                    Object.class.getMethod("toString")};
+        } catch (NoSuchMethodException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
 
     public CacheInvocationHandler() {
-        methodMap = new HashMap<>();
-        lastValues = new CacheStorage();
-        if (cacheCleaner == null) {
+        this(null, ExpiryMode.BACKGROUND);
+    }
+
+    public CacheInvocationHandler(StateKeyExtractor stateKeyExtractor) {
+        this(stateKeyExtractor, ExpiryMode.BACKGROUND);
+    }
+
+    public CacheInvocationHandler(ExpiryMode expiryMode) {
+        this(null, expiryMode);
+    }
+
+    /**
+     * @param stateKeyExtractor стратегия получения состояния объекта для ключа кэша.
+     *                          Если не задана, выбирается по классу объекта в методе <b>cache()</b>
+     * @param expiryMode        способ удаления устаревших значений. В режиме {@link ExpiryMode#LAZY}
+     *                          общий поток очистки не создаётся и хранилище в нём не регистрируется
+     */
+    public CacheInvocationHandler(StateKeyExtractor stateKeyExtractor, ExpiryMode expiryMode) {
+        this.stateKeyExtractor = stateKeyExtractor;
+        methodMap = new ConcurrentHashMap<>();
+        lastValues = new CacheStorage(expiryMode);
+        if (expiryMode == ExpiryMode.BACKGROUND) {
+            getCacheCleaner().addCacheStorage(lastValues);
+            registerCleanup();
+        }
+    }
+
+    // снимает с очистки хранилища собранных сборщиком мусора обработчиков и освобождает их регионы.
+    // Поток Cleaner создаётся при первой регистрации: в режиме LAZY без регионов и второго уровня потоков нет
+    private static class HandlerCleaner {
+        static final Cleaner CLEANER = Cleaner.create();
+    }
+
+    /** Регистрирует освобождение ресурсов обработчика после его сборки сборщиком мусора.
+     *  Нужно, только когда обработчику есть что освобождать: хранилище на общей очистке, регионы или второй уровень
+     */
+    private synchronized void registerCleanup() {
+        if (cleanupRegistered) {
+            return;
+        }
+        cleanupRegistered = true;
+        // действие очистки не должно ссылаться на обработчик, иначе он никогда не станет недостижимым
+        CacheStorage storage = lastValues;
+        CacheRegions.Lease lease = regions;
+        HandlerCleaner.CLEANER.register(this, () -> {
+            unregisterCacheStorage(storage);
+            storage.detachRemoteTier();
+            lease.run();
+        });
+    }
+
+    static synchronized CacheCleaner getCacheCleaner() {
+        if (cacheCleaner == null || cacheCleaner.isShutdown()) {
             cacheCleaner = new CacheCleaner();
         }
-        cacheCleaner.addCacheStorage(lastValues);
+        return cacheCleaner;
+    }
+
+    static synchronized void unregisterCacheStorage(CacheStorage storage) {
+        if (cacheCleaner != null) {
+            cacheCleaner.removeCacheStorage(storage);
+        }
+    }
+
+    /** Останавливает общий поток очистки кэша. Хранилища, созданные после этого, запустят новый поток
+     */
+    public static synchronized void shutdownCacheCleaner() {
+        if (cacheCleaner != null) {
+            cacheCleaner.shutdown();
+            cacheCleaner = null;
+        }
+    }
+
+    private static synchronized Executor getDefaultRefreshExecutor() {
+        if (defaultRefreshExecutor == null) {
+            try {
+                // Java 21+: каждое обновление - в своём виртуальном потоке
+                defaultRefreshExecutor = (Executor) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+            } catch (ReflectiveOperationException e) {
+                defaultRefreshExecutor = Executors.newCachedThreadPool(runnable -> {
+                    Thread thread = new Thread(runnable, "cache-refresh");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+            }
+        }
+        return defaultRefreshExecutor;
+    }
+
+    public void setRefreshExecutor(Executor refreshExecutor) {
+        this.refreshExecutor = refreshExecutor;
+    }
+
+    /** Ограничивает число обновлений refreshAfter, одновременно выполняемых через этот прокси
+     */
+    public void setMaxRefreshes(int maxRefreshes) {
+        this.maxRefreshes = maxRefreshes;
+    }
+
+    /** Подключает второй уровень кэша, общий для нескольких JVM. Значения, вычисленные в одной JVM,
+     *  при промахе берутся из него в других, а вызов @Mutator сбрасывает устаревшие значения на всех узлах
+     * @param timeoutMillis сколько ждать ответа второго уровня при промахе, прежде чем вычислять значение самому
+     * @throws IllegalStateException если состояние объекта - версия {@link StateVersioned}, не определяющая содержимое
+     */
+    public void setRemoteTier(CacheTier tier, long timeoutMillis) {
+        checkVersionsComparable(tier != null);
+        lastValues.setRemoteTier(tier, timeoutMillis);
+        registerCleanup();
+    }
+
+    /** Подключает снимок кэша: промахи ищутся в нём, а содержимое кэша записывается в него каждые periodMillis
+     *  (0 - только вызовом snapshot.save()/close()).
+     *  Значения снимка привязаны к состоянию объекта, поэтому первый вызов уже может взять значение из кэша
+     * @throws IllegalStateException если состояние объекта - версия {@link StateVersioned}, не определяющая содержимое
+     */
+    public void setSnapshot(CacheSnapshot snapshot, long periodMillis) {
+        checkVersionsComparable(snapshot != null);
+        lastValues.setSnapshot(snapshot);
+        if (periodMillis > 0) {
+            snapshot.saveEvery(lastValues, periodMillis);
+        }
+        for (CachedObjectMethod cachedMethod : cachedMethods) {
+            cachedMethod.changed = false;
+        }
     }
 
     public T cache(T object) {
-        this.cachedObject = object;
-        // Первоначальное состояние = "Изменён", т.к. первый вызов метода обязательно должено отработать
-        this.cachedObjectChanged = true;
+        bind(object);
 
         return (T) Proxy.newProxyInstance(
                 object.getClass().getClassLoader(),
@@ -47,70 +259,699 @@ public class CacheInvocationHandler<T> implements InvocationHandler {
                 this);
     }
 
+    /** Начинает отслеживать объект без создания прокси.
+     *  Используется классами, сгенерированными процессором аннотаций Stage2_Task3-processor:
+     *  методы с <b>@Cache</b> они обслуживают через <b>getIfPresent()</b>/<b>loadValue()</b>, с <b>@Mutator</b> -
+     *  через <b>invoke()</b>, а остальные методы вызывают на самом объекте
+     */
+    public CacheInvocationHandler<T> bind(T object) {
+        this.cachedObject = object;
+        if (this.stateKeyExtractor == null) {
+            this.stateKeyExtractor = StateKeyExtractor.forClass(object.getClass());
+        }
+        // Все методы интерфейсов разбираем сразу, чтобы при вызове оставался только поиск в карте и прямой вызов
+        methodMap.clear();
+        methodIndex = MethodIndex.EMPTY;
+        for (Class<?> objectInterface : object.getClass().getInterfaces()) {
+            for (Method method : objectInterface.getMethods()) {
+                methodMap.put(method, findObjectMethod(method));
+            }
+        }
+        for (Method method : OBJECT_METHODS) {
+            methodMap.put(method, findObjectMethod(method));
+        }
+        cachedMethods = methodMap.values().stream()
+                .filter(objectMethod -> objectMethod.isCached)
+                .collect(Collectors.toList());
+        regions.retainOnly(cachedMethods.stream()
+                .map(objectMethod -> objectMethod.method.getAnnotation(Cache.class).region())
+                .collect(Collectors.toSet()));
+        if (!regions.isEmpty()) {
+            registerCleanup();
+        }
+        checkVersionsComparable(!regions.isEmpty() || lastValues.getSnapshot() != null || lastValues.hasRemoteTier());
+        for (CachedObjectMethod objectMethod : methodMap.values()) {
+            if (objectMethod.isMutator) {
+                objectMethod.invalidates = findInvalidated(objectMethod.method);
+            }
+            // Первоначальное состояние = "Изменён", т.к. первый вызов метода обязательно должено отработать
+            // Исключение - общий регион и подключённый снимок кэша: их значения уже привязаны к состоянию объекта
+            objectMethod.changed = objectMethod.storage == lastValues && lastValues.getSnapshot() == null;
+        }
+        return this;
+    }
+
+    /** Общий регион, снимок и второй уровень сравнивают состояния разных объектов и разных запусков.
+     *  Версия-счётчик {@link StateVersioned} для этого не годится: одинаковые номера изменений у разных объектов
+     *  не означают одинаковых состояний, и объект получил бы чужое значение
+     */
+    private void checkVersionsComparable(boolean shared) {
+        if (shared && stateKeyExtractor instanceof VersionStateKeyExtractor && cachedObject != null
+                && !((StateVersioned) cachedObject).versionIdentifiesContent()) {
+            throw new IllegalStateException("Версия состояния " + cachedObject.getClass().getName()
+                    + " не определяет его содержимое и не может использоваться с общим регионом, снимком"
+                    + " или вторым уровнем кэша. Версия должна однозначно определять содержимое (идентификатор неизменяемого"
+                    + " снимка или дайджест, не хэш), а versionIdentifiesContent() - возвращать true");
+        }
+    }
+
+    // Кэшируемые методы, которые инвалидирует @Mutator: по имени метода или группы @Cache(group).
+    // Имя, которому не соответствует ни один метод, - опечатка: такой @Mutator не инвалидировал бы ничего
+    private List<CachedObjectMethod> findInvalidated(Method mutator) {
+        String[] invalidates = mutator.getAnnotation(Mutator.class).invalidates();
+        if (invalidates.length == 0) {
+            return cachedMethods;
+        }
+        for (String name : invalidates) {
+            if (cachedMethods.stream().noneMatch(objectMethod -> matches(objectMethod, name))) {
+                throw new IllegalArgumentException("@Mutator(invalidates) метода " + mutator.getName()
+                        + ": нет кэшируемого метода или группы \"" + name + "\"");
+            }
+        }
+        return cachedMethods.stream()
+                .filter(objectMethod -> Arrays.stream(invalidates).anyMatch(name -> matches(objectMethod, name)))
+                .collect(Collectors.toList());
+    }
+
+    private boolean matches(CachedObjectMethod objectMethod, String name) {
+        return name.equals(objectMethod.method.getName()) || name.equals(objectMethod.method.getAnnotation(Cache.class).group());
+    }
+
     public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
         CachedObjectMethod objectMethod = getCachedObjectMethod(method);
         if (objectMethod != null) {
             if (objectMethod.isCached) {
-                Object lastValue;
-                // если объект не менялся, пытаемся достать значение из кэша
-                if (!cachedObjectChanged) {
-                    try {
-                        lastValue = lastValues.getCachedValue(method, cachedObject.toString());
-                        System.out.println("    Cached object not changed, skip method " + method.getName() + " call! Cache = "+lastValue);
-                        return lastValue;
-                    } catch (IllegalArgumentException e) {}
-                }
-                // в противном случае вызываем исходный метод и кешируем результат
-                cachedObjectChanged = false;
-                lastValue = method.invoke(cachedObject, args);
-                lastValues.saveValue(method, cachedObject.toString(), lastValue, objectMethod.cacheTTL);
-                return lastValue;
+                // ключ строится один раз и используется и для поиска, и для сохранения значения
+                // значения хранятся по методу проксируемого объекта: на нём находятся настройки аннотации @Cache
+                CompositeKey key = CompositeKey.of(objectMethod.method, stateKeyExtractor.extractKey(cachedObject), args);
+                Object value = lookup(objectMethod, key);
+                return value != MISS ? value : loadMissing(objectMethod, key, args);
 
             } else if (objectMethod.isMutator) {
-                System.out.println("    Object state start to change!");
-                cachedObjectChanged = true;
+                // инвалидируем только методы, перечисленные в @Mutator(invalidates) - O(затронутых методов)
+                Object state = null;
+                for (CachedObjectMethod cachedMethod : objectMethod.invalidates != null ? objectMethod.invalidates : cachedMethods) {
+                    cachedMethod.changed = true;
+                    cachedMethod.mutated = true;
+                    cachedMethod.stats.recordInvalidation();
+                    // значения для текущего, ещё не изменённого состояния устарели и на других узлах
+                    if (cachedMethod.storage.hasRemoteTier()) {
+                        if (state == null) {
+                            state = stateKeyExtractor.extractKey(cachedObject);
+                        }
+                        cachedMethod.storage.invalidate(cachedMethod.method, state);
+                    }
+                }
             }
             // Если дошли до этой точки, то просто вызываем на проксируемом объекте перехваченный метод
-            System.out.println("    Call native object method " + method.getName());
-            return objectMethod.method.invoke(cachedObject, args);
+            return objectMethod.invoke(args);
         }
         return  null;
     }
 
+    // Значение из кэша или MISS, если изменения объекта касались метода или значения в кэше нет
+    private Object lookup(CachedObjectMethod objectMethod, CompositeKey key) {
+        if (!objectMethod.changed) {
+            TimedValue timedValue = objectMethod.storage.getTimedValue(objectMethod.method, key);
+            if (timedValue != null) {
+                if (objectMethod.refreshAfter > 0 && nanoTime() - timedValue.getCreated() > 1000000L * objectMethod.refreshAfter) {
+                    refresh(objectMethod, key, key.getArgs());
+                }
+                objectMethod.stats.recordHit();
+                // асинхронному методу - новый завершённый future, чтобы вызывающие не могли повлиять друг на друга
+                return objectMethod.isAsync ? CompletableFuture.completedFuture(timedValue.getValue()) : timedValue.getValue();
+            }
+        }
+        return MISS;
+    }
+
+    // Промах: вызываем исходный метод и кешируем результат
+    private Object loadMissing(CachedObjectMethod objectMethod, CompositeKey key, Object[] args) throws Throwable {
+        objectMethod.stats.recordMiss();
+        key = storedKey(key);
+        // после изменения объекта значение в кэше по тому же ключу может быть устаревшим, его нельзя переиспользовать
+        boolean changed = objectMethod.changed;
+        boolean mutated = objectMethod.mutated;
+        objectMethod.changed = false;
+        objectMethod.mutated = false;
+        return objectMethod.isAsync ? loadAsync(objectMethod, key, args, changed) : load(objectMethod, key, args, changed, mutated);
+    }
+
+    // Ключ, который попадёт в кэш: изменяемые части состояния копируются, поиск же идёт по ключу без копий
+    private CompositeKey storedKey(CompositeKey key) {
+        Object state = key.getState();
+        Object copy = stateKeyExtractor.copyKey(state);
+        return copy == state ? key : key.withState(copy);
+    }
+
+    /** Состояние отслеживаемого объекта для ключа кэша. Вместе с <b>keyMethod()</b>, <b>getIfPresent()</b>
+     *  и <b>loadValue()</b> используется классами, сгенерированными процессором аннотаций: они строят ключ
+     *  вариантом CompositeKey.of() по числу аргументов и обращаются к хранилищу без массива аргументов
+     */
+    public Object stateKey() {
+        return stateKeyExtractor.extractKey(cachedObject);
+    }
+
+    // Метод проксируемого объекта, по которому хранятся значения метода интерфейса method
+    public Method keyMethod(Method method) {
+        return getCachedObjectMethod(method).method;
+    }
+
+    /** Значение кэшируемого метода по ключу, построенному по <b>keyMethod()</b> и <b>stateKey()</b>
+     * @return значение или {@link #MISS}, тогда значение вычисляется через <b>loadValue()</b>
+     */
+    public Object getIfPresent(Method method, CompositeKey key) {
+        return lookup(getCachedObjectMethod(method), key);
+    }
+
+    // Вычисляет значение после промаха getIfPresent() по тому же ключу
+    public Object loadValue(Method method, CompositeKey key, Object[] args) throws Throwable {
+        return loadMissing(getCachedObjectMethod(method), key, args);
+    }
+
+    /** Вычисляет значение и помещает его в кэш. Одновременные вычисления по одному ключу объединяются:
+     *  метод вызывает только первый поток, остальные ждут его результата
+     * @param changed промах вызван изменением объекта или первым вызовом: значение, уже лежащее в кэше, не используется
+     * @param mutated после прошлого вычисления вызывался @Mutator: во втором уровне по тому же ключу может лежать
+     *                значение, вычисленное до изменения, поэтому второй уровень тоже не используется
+     */
+    private Object load(CachedObjectMethod objectMethod, CompositeKey key, Object[] args, boolean changed, boolean mutated) throws Throwable {
+        CompletableFuture<Object> loader = new CompletableFuture<>();
+        CompletableFuture<Object> inFlight = objectMethod.storage.startLoading(objectMethod.method, key, loader);
+        if (inFlight != null) {
+            objectMethod.recordCoalescedCall();
+            return awaitLoading(objectMethod, inFlight, args);
+        }
+        try {
+            // вычисление, завершившееся между промахом и startLoading(), уже сохранило значение
+            TimedValue timedValue = changed ? null : objectMethod.storage.getTimedValue(objectMethod.method, key);
+            if (timedValue != null) {
+                loader.complete(timedValue.getValue());
+                return timedValue.getValue();
+            }
+            // значение могла уже вычислить другая JVM
+            TimedValue remote = mutated ? null : objectMethod.storage.getRemoteValue(objectMethod.method, key, objectMethod.cacheTTL);
+            if (remote != null) {
+                loader.complete(remote.getValue());
+                return remote.getValue();
+            }
+            long start = nanoTime();
+            Object value = objectMethod.invoke(args);
+            objectMethod.stats.recordLoad(nanoTime() - start);
+            objectMethod.storage.saveValue(objectMethod.method, key, value, objectMethod.cacheTTL);
+            loader.complete(value);
+            return value;
+        } catch (Throwable e) {
+            loader.completeExceptionally(e);
+            throw e;
+        } finally {
+            objectMethod.storage.finishLoading(objectMethod.method, key, loader);
+        }
+    }
+
+    /** Асинхронный вариант load() для методов, возвращающих CompletableFuture/CompletionStage.
+     *  Вызывающий поток не блокируется: пока значение вычисляется, все вызовы по ключу получают копию одного future.
+     *  В кэш попадает результат future в момент его завершения, так что время жизни отсчитывается от завершения.
+     *  Завершившийся ошибкой future не кэшируется, следующий вызов вычисляет значение заново
+     *  <p>
+     *  Результат сохраняется на refreshExecutor, а не в потоке, завершившем future: это может быть поток чужого пула
+     *  (например, ввода-вывода), которому нельзя сериализовать значение и ждать блокировку сегмента.
+     *  <p>
+     *  <b>@Cache(loadTimeout)</b> ограничивает, сколько вычисление по ключу ждёт future метода: по истечении
+     *  все вызовы по ключу получают TimeoutException, вычисление снимается, и следующий вызов вычисляет значение заново.
+     *  Иначе future, который никогда не завершится, навсегда занял бы ключ. Сам future метода при этом не затрагивается
+     */
+    private Object loadAsync(CachedObjectMethod objectMethod, CompositeKey key, Object[] args, boolean changed) throws Throwable {
+        CompletableFuture<Object> loader = new CompletableFuture<>();
+        CompletableFuture<Object> inFlight = objectMethod.storage.startLoading(objectMethod.method, key, loader);
+        if (inFlight != null) {
+            objectMethod.recordCoalescedCall();
+            return inFlight.copy();
+        }
+        TimedValue timedValue = changed ? null : objectMethod.storage.getTimedValue(objectMethod.method, key);
+        if (timedValue != null) {
+            loader.complete(timedValue.getValue());
+            objectMethod.storage.finishLoading(objectMethod.method, key, loader);
+            return CompletableFuture.completedFuture(timedValue.getValue());
+        }
+        long start = nanoTime();
+        CompletionStage<?> result;
+        try {
+            result = (CompletionStage<?>) objectMethod.invoke(args);
+        } catch (Throwable e) {
+            loader.completeExceptionally(e);
+            objectMethod.storage.finishLoading(objectMethod.method, key, loader);
+            throw e;
+        }
+        if (result == null) {
+            loader.complete(null);
+            objectMethod.storage.finishLoading(objectMethod.method, key, loader);
+            return null;
+        }
+        // ожидающие получают результат, когда значение уже в кэше, а вычисление по ключу снято:
+        // следующий вызов возьмёт значение из кэша, а после ошибки - вычислит заново
+        bounded(objectMethod, result).whenCompleteAsync((value, error) -> {
+            try {
+                if (error == null) {
+                    objectMethod.stats.recordLoad(nanoTime() - start);
+                    objectMethod.storage.saveValue(objectMethod.method, key, value, objectMethod.cacheTTL);
+                }
+            } finally {
+                objectMethod.storage.finishLoading(objectMethod.method, key, loader);
+                if (error == null) {
+                    loader.complete(value);
+                } else {
+                    loader.completeExceptionally(error);
+                }
+            }
+        }, completionExecutor);
+        return loader.copy();
+    }
+
+    // Копия future асинхронного метода, завершающаяся TimeoutException по истечении @Cache(loadTimeout).
+    // Копия, а не orTimeout() самого future: он принадлежит методу и может использоваться помимо кэша
+    private static CompletionStage<?> bounded(CacheInvocationHandler<?>.CachedObjectMethod objectMethod, CompletionStage<?> result) {
+        if (objectMethod.loadTimeout <= 0) {
+            return result;
+        }
+        CompletableFuture<Object> bounded = new CompletableFuture<>();
+        result.whenComplete((value, error) -> {
+            if (error == null) {
+                bounded.complete(value);
+            } else {
+                bounded.completeExceptionally(error);
+            }
+        });
+        return bounded.orTimeout(objectMethod.loadTimeout, TimeUnit.MILLISECONDS);
+    }
+
+    private static Object awaitLoading(CacheInvocationHandler<?>.CachedObjectMethod objectMethod, CompletableFuture<Object> inFlight, Object[] args) throws Throwable {
+        try {
+            return objectMethod.loadTimeout > 0
+                    ? inFlight.get(objectMethod.loadTimeout, TimeUnit.MILLISECONDS)
+                    : inFlight.get();
+        } catch (ExecutionException e) {
+            throw e.getCause();
+        } catch (TimeoutException | CancellationException e) {
+            // не дождались - вычисляем сами, не мешая начатому вычислению сохранить результат
+            return objectMethod.invoke(args);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return objectMethod.invoke(args);
+        }
+    }
+
+    /** Асинхронно обновляет значение, не блокируя вызывающий поток. Если значение по ключу уже вычисляется
+     *  или достигнут предел одновременных обновлений, ничего не делает
+     */
+    private void refresh(CachedObjectMethod objectMethod, CompositeKey lookupKey, Object[] args) {
+        CompositeKey key = storedKey(lookupKey);
+        if (refreshesInFlight.incrementAndGet() > maxRefreshes) {
+            refreshesInFlight.decrementAndGet();
+            return;
+        }
+        CompletableFuture<Object> loader = new CompletableFuture<>();
+        if (objectMethod.storage.startLoading(objectMethod.method, key, loader) != null) {
+            refreshesInFlight.decrementAndGet();
+            return;
+        }
+        Runnable refreshTask = () -> {
+            long start = nanoTime();
+            try {
+                Object result = objectMethod.invoke(args);
+                if (objectMethod.isAsync && result != null) {
+                    bounded(objectMethod, (CompletionStage<?>) result).whenCompleteAsync((value, error) -> finishRefresh(objectMethod, key, loader, start, value, error),
+                            completionExecutor);
+                } else {
+                    finishRefresh(objectMethod, key, loader, start, result, null);
+                }
+            } catch (Throwable e) {
+                finishRefresh(objectMethod, key, loader, start, null, e);
+            }
+        };
+        try {
+            (refreshExecutor != null ? refreshExecutor : getDefaultRefreshExecutor()).execute(refreshTask);
+        } catch (RejectedExecutionException e) {
+            objectMethod.storage.finishLoading(objectMethod.method, key, loader);
+            refreshesInFlight.decrementAndGet();
+            loader.cancel(false);
+        }
+    }
+
+    private void finishRefresh(CachedObjectMethod objectMethod, CompositeKey key, CompletableFuture<Object> loader,
+                               long start, Object value, Throwable error) {
+        try {
+            if (error == null) {
+                objectMethod.stats.recordLoad(nanoTime() - start);
+                // пока значение вычислялось, объект мог измениться: такое значение к ключу уже не относится
+                if (Objects.deepEquals(key.getState(), stateKeyExtractor.extractKey(cachedObject))) {
+                    objectMethod.storage.saveValue(objectMethod.method, key, value, objectMethod.cacheTTL);
+                }
+                loader.complete(value);
+            } else {
+                // текущее значение остаётся в кэше до истечения времени жизни
+                loader.completeExceptionally(error);
+            }
+        } finally {
+            objectMethod.storage.finishLoading(objectMethod.method, key, loader);
+            refreshesInFlight.decrementAndGet();
+        }
+    }
+
+    public static List<Object> getAll(Method method, Collection<?> proxies, Object... args) throws Throwable {
+        return getAll(method, proxies, ForkJoinPool.commonPool(), args);
+    }
+
+    /** Вызывает метод method у каждого прокси из proxies и возвращает результаты в том же порядке
+     *  <p>
+     *  Попадания в кэш разрешаются одним проходом, промахи вычисляются параллельно на executor,
+     *  а результаты сохраняются одним пакетом на хранилище. Одинаковые ключи (например, объекты в одинаковом состоянии
+     *  с общим регионом) вычисляются один раз. Вычисления, уже начатые другими потоками, не повторяются.
+     *  Объекты, которые не являются прокси CacheInvocationHandler, вызываются напрямую
+     * @throws Throwable первое исключение вычисляемых методов, успешно вычисленные значения при этом сохраняются
+     */
+    public static List<Object> getAll(Method method, Collection<?> proxies, Executor executor, Object... args) throws Throwable {
+        // Proxy передаёт обработчику null вместо пустого массива аргументов
+        Object[] arguments = args.length == 0 ? null : args;
+        Object[] results = new Object[proxies.size()];
+        Map<CacheStorage, Map<CompositeKey, BulkLoad>> misses = new IdentityHashMap<>();
+        List<BulkLoad> loads = new ArrayList<>();
+        int position = 0;
+        for (Object proxy : proxies) {
+            int index = position++;
+            CacheInvocationHandler<?> handler = Proxy.isProxyClass(proxy.getClass())
+                    && Proxy.getInvocationHandler(proxy) instanceof CacheInvocationHandler
+                    ? (CacheInvocationHandler<?>) Proxy.getInvocationHandler(proxy) : null;
+            if (handler == null) {
+                try {
+                    results[index] = method.invoke(proxy, args);
+                } catch (InvocationTargetException e) {
+                    throw e.getCause();
+                }
+                continue;
+            }
+            CacheInvocationHandler<?>.CachedObjectMethod objectMethod = handler.getCachedObjectMethod(method);
+            // асинхронные методы сами не блокируют поток, для них пакетный вызов сводится к обычному
+            if (objectMethod == null || !objectMethod.isCached || objectMethod.isAsync) {
+                results[index] = handler.invoke(proxy, method, arguments);
+                continue;
+            }
+            CompositeKey key = CompositeKey.of(objectMethod.method, handler.stateKeyExtractor.extractKey(handler.cachedObject), arguments);
+            if (!objectMethod.changed) {
+                TimedValue timedValue = objectMethod.storage.getTimedValue(objectMethod.method, key);
+                if (timedValue != null) {
+                    objectMethod.stats.recordHit();
+                    results[index] = timedValue.getValue();
+                    continue;
+                }
+            }
+            objectMethod.stats.recordMiss();
+            key = handler.storedKey(key);
+            boolean mutated = objectMethod.mutated;
+            objectMethod.changed = false;
+            objectMethod.mutated = false;
+            BulkLoad load = misses.computeIfAbsent(objectMethod.storage, storage -> new HashMap<>()).get(key);
+            if (load == null) {
+                load = new BulkLoad(objectMethod, key);
+                misses.get(objectMethod.storage).put(key, load);
+                loads.add(load);
+            }
+            load.mutated |= mutated;
+            load.positions.add(index);
+        }
+
+        // промахи вычисляются параллельно, кроме тех, что уже вычисляют другие потоки
+        List<CompletableFuture<Void>> computations = new ArrayList<>();
+        for (BulkLoad load : loads) {
+            load.inFlight = load.objectMethod.storage.startLoading(load.objectMethod.method, load.key, load.loader);
+            if (load.inFlight == null) {
+                computations.add(CompletableFuture.runAsync(load::compute, executor));
+            }
+        }
+        CompletableFuture.allOf(computations.toArray(new CompletableFuture<?>[0])).join();
+
+        // сохраняем одним пакетом на хранилище и метод, затем отпускаем ожидающих
+        Map<CacheStorage, Map<Method, List<BulkLoad>>> batches = new IdentityHashMap<>();
+        for (BulkLoad load : loads) {
+            if (load.inFlight == null && load.error == null) {
+                batches.computeIfAbsent(load.objectMethod.storage, storage -> new HashMap<>())
+                        .computeIfAbsent(load.objectMethod.method, m -> new ArrayList<>())
+                        .add(load);
+            }
+        }
+        batches.forEach((storage, byMethod) -> byMethod.forEach((cachedMethod, batch) -> {
+            List<CompositeKey> keys = new ArrayList<>(batch.size());
+            List<Object> values = new ArrayList<>(batch.size());
+            for (BulkLoad load : batch) {
+                keys.add(load.key);
+                values.add(load.value);
+            }
+            storage.saveValues(cachedMethod, keys, values, batch.get(0).objectMethod.cacheTTL);
+        }));
+
+        // сначала завершаем все свои вычисления и только потом ждём чужие: встречные вызовы getAll,
+        // каждый из которых ждёт вычисление другого, иначе ждали бы друг друга бесконечно
+        for (BulkLoad load : loads) {
+            if (load.inFlight == null) {
+                if (load.error == null) {
+                    load.loader.complete(load.value);
+                } else {
+                    load.loader.completeExceptionally(load.error);
+                }
+                load.objectMethod.storage.finishLoading(load.objectMethod.method, load.key, load.loader);
+            }
+        }
+        Throwable error = null;
+        for (BulkLoad load : loads) {
+            if (load.inFlight != null) {
+                try {
+                    load.objectMethod.recordCoalescedCall();
+                    load.value = awaitLoading(load.objectMethod, load.inFlight, load.key.getArgs());
+                } catch (Throwable e) {
+                    load.error = e;
+                }
+            }
+            if (load.error != null && error == null) {
+                error = load.error;
+            }
+            for (int index : load.positions) {
+                results[index] = load.value;
+            }
+        }
+        if (error != null) {
+            throw error;
+        }
+        return Arrays.asList(results);
+    }
+
+    // Промах пакетного вызова: один ключ одного хранилища и позиции результатов, которые он заполняет
+    private static class BulkLoad {
+        private final CacheInvocationHandler<?>.CachedObjectMethod objectMethod;
+        private final CompositeKey key;
+        private final List<Integer> positions = new ArrayList<>(1);
+        private final CompletableFuture<Object> loader = new CompletableFuture<>();
+        private CompletableFuture<Object> inFlight;
+        // у хотя бы одного объекта с этим ключом вызывался @Mutator: второй уровень не используется, как и в load()
+        private boolean mutated;
+        private Object value;
+        private Throwable error;
+
+        private BulkLoad(CacheInvocationHandler<?>.CachedObjectMethod objectMethod, CompositeKey key) {
+            this.objectMethod = objectMethod;
+            this.key = key;
+        }
+
+        private void compute() {
+            try {
+                TimedValue remote = mutated ? null : objectMethod.storage.getRemoteValue(objectMethod.method, key, objectMethod.cacheTTL);
+                if (remote != null) {
+                    value = remote.getValue();
+                    return;
+                }
+                long start = nanoTime();
+                value = objectMethod.invoke(key.getArgs());
+                objectMethod.stats.recordLoad(nanoTime() - start);
+            } catch (Throwable e) {
+                error = e;
+            }
+        }
+    }
+
+    /** Количество вызовов кэшируемых методов через этот обработчик, которые дождались значения,
+     *  вычисляемого другим потоком, вместо собственного вызова метода.
+     *  Вызовы через все прокси класса учитывает {@link CacheStats#getCoalescedCalls()} метода
+     */
+    public long getCoalescedCalls() {
+        return coalescedCalls.sum();
+    }
+
     /**
     * getCachedObjectMethod - по методу method прокси объекта,
     * возвращает соответствующий ему метод проксируемого объекта
      * */
-    private CachedObjectMethod getCachedObjectMethod(Method method) {
-        CachedObjectMethod objectMethod = null;
+    CachedObjectMethod getCachedObjectMethod(Method method) {
+        // Обычно метод уже есть в индексе: поиск - сравнение ссылок без Method.equals()
+        CachedObjectMethod objectMethod = methodIndex.get(method);
+        return objectMethod != null ? objectMethod : resolveObjectMethod(method);
+    }
+
+    // Первый вызов через этот экземпляр Method: ищем по равенству и добавляем экземпляр в индекс
+    private CachedObjectMethod resolveObjectMethod(Method method) {
         // Чтобы каждый раз не заниматься сложными поисками соответствующего метода в проксируемом объекте
         // строим мапу методов прокси и проксируемого
-        if (!methodMap.containsKey(method)) {
+        CachedObjectMethod objectMethod = methodMap.get(method);
+        if (objectMethod == null) {
             try {
-                objectMethod = new CachedObjectMethod(cachedObject.getClass().getMethod(method.getName(), method.getParameterTypes()));
-            } catch (NoSuchMethodException e) {}
-            methodMap.put(method, objectMethod);
-        } else {
-            objectMethod = methodMap.get(method);
+                objectMethod = methodMap.computeIfAbsent(method, this::findObjectMethod);
+            } catch (IllegalArgumentException e) {}
+        }
+        if (objectMethod != null) {
+            indexMethod(method, objectMethod);
         }
         return objectMethod;
     }
 
+    private synchronized void indexMethod(Method method, CachedObjectMethod objectMethod) {
+        MethodIndex index = methodIndex;
+        // getAll() может получать каждый раз новую копию Method: такие копии в индекс не попадают, чтобы он не рос бесконечно
+        if (index.get(method) == null && index.size < 2 * methodMap.size() + 8) {
+            methodIndex = index.with(method, objectMethod);
+        }
+    }
+
+    /** Неизменяемая таблица с открытой адресацией по System.identityHashCode(method).
+     *  Изменяется копированием, поэтому читается без блокировок
+     */
+    private static class MethodIndex {
+        private static final MethodIndex EMPTY = new MethodIndex(new Method[2], new CacheInvocationHandler<?>.CachedObjectMethod[2], 0);
+
+        private final Method[] keys;
+        private final CacheInvocationHandler<?>.CachedObjectMethod[] values;
+        private final int size;
+
+        private MethodIndex(Method[] keys, CacheInvocationHandler<?>.CachedObjectMethod[] values, int size) {
+            this.keys = keys;
+            this.values = values;
+            this.size = size;
+        }
+
+        @SuppressWarnings("unchecked")
+        <M extends CacheInvocationHandler<?>.CachedObjectMethod> M get(Method method) {
+            int mask = keys.length - 1;
+            for (int i = System.identityHashCode(method) & mask; keys[i] != null; i = (i + 1) & mask) {
+                if (keys[i] == method) {
+                    return (M) values[i];
+                }
+            }
+            return null;
+        }
+
+        MethodIndex with(Method method, CacheInvocationHandler<?>.CachedObjectMethod objectMethod) {
+            // заполнение не больше половины, чтобы цепочки проб оставались короткими
+            int capacity = keys.length;
+            while (capacity < 2 * (size + 1)) {
+                capacity *= 2;
+            }
+            MethodIndex index = new MethodIndex(new Method[capacity], new CacheInvocationHandler<?>.CachedObjectMethod[capacity], size + 1);
+            for (int i = 0; i < keys.length; i++) {
+                if (keys[i] != null) {
+                    index.put(keys[i], values[i]);
+                }
+            }
+            index.put(method, objectMethod);
+            return index;
+        }
+
+        private void put(Method method, CacheInvocationHandler<?>.CachedObjectMethod objectMethod) {
+            int mask = keys.length - 1;
+            int i = System.identityHashCode(method) & mask;
+            while (keys[i] != null) {
+                i = (i + 1) & mask;
+            }
+            keys[i] = method;
+            values[i] = objectMethod;
+        }
+    }
+
+    private CachedObjectMethod findObjectMethod(Method method) {
+        try {
+            return new CachedObjectMethod(cachedObject.getClass().getMethod(method.getName(), method.getParameterTypes()), method);
+        } catch (NoSuchMethodException | IllegalAccessException e) {
+            throw new IllegalArgumentException(e);
+        }
+    }
+
+    /** CachedObjectMethod - метод проксируемого объекта с разобранными аннотациями
+     *  и заранее привязанным к объекту MethodHandle, через который выполняется вызов без рефлексии
+     */
     class CachedObjectMethod {
         private final Method method;
+        private final MethodHandle invoker;
         private final long cacheTTL;
+        private final long loadTimeout;
+        private final long refreshAfter;
+        private final CacheStats stats;
         private final boolean isCached;
         private final boolean isMutator;
+        // метод возвращает CompletableFuture/CompletionStage: кэшируется результат, а не сам future
+        private final boolean isAsync;
+        // хранилище значений метода: собственное хранилище обработчика или общий регион @Cache(region)
+        private final CacheStorage storage;
+        // признак изменения объекта с момента последнего вычисления значения метода
+        private volatile boolean changed = true;
+        // с момента последнего вычисления вызывался @Mutator: значение во втором уровне тоже может быть устаревшим
+        private volatile boolean mutated;
+        // кэшируемые методы, которые инвалидирует этот @Mutator, заполняется в bind()
+        private List<CachedObjectMethod> invalidates;
 
-        public CachedObjectMethod(Method method) {
+        /**
+         * @param method      метод проксируемого объекта, на нём находятся аннотации
+         * @param proxyMethod метод интерфейса, через него строится вызов: интерфейс доступен, даже если класс объекта нет
+         */
+        public CachedObjectMethod(Method method, Method proxyMethod) throws IllegalAccessException {
             this.method = method;
+            this.invoker = bind(proxyMethod);
             this.isCached = method.isAnnotationPresent(Cache.class);
+            // статистика нужна только кэшируемым методам
+            this.stats = isCached ? CacheStats.of(method) : null;
             this.isMutator = method.isAnnotationPresent(Mutator.class);
+            Class<?> returnType = proxyMethod.getReturnType();
+            this.isAsync = returnType == CompletableFuture.class || returnType == CompletionStage.class;
             if (this.isCached) {
-                cacheTTL = method.getAnnotation(Cache.class).value();
+                Cache cache = method.getAnnotation(Cache.class);
+                cacheTTL = cache.value();
+                loadTimeout = cache.loadTimeout();
+                refreshAfter = cache.refreshAfter();
+                storage = cache.region().isEmpty() ? lastValues : regions.acquire(cache.region(), lastValues.getExpiryMode());
             } else {
                 cacheTTL = 0;
+                loadTimeout = 0;
+                refreshAfter = 0;
+                storage = lastValues;
+            }
+        }
+
+        private MethodHandle bind(Method proxyMethod) throws IllegalAccessException {
+            MethodHandle handle;
+            try {
+                handle = MethodHandles.lookup().unreflect(proxyMethod);
+            } catch (IllegalAccessException e) {
+                proxyMethod.setAccessible(true);
+                handle = MethodHandles.lookup().unreflect(proxyMethod);
             }
+            return handle.bindTo(cachedObject)
+                    .asSpreader(Object[].class, proxyMethod.getParameterCount())
+                    .asType(MethodType.methodType(Object.class, Object[].class));
+        }
+
+        Object invoke(Object[] args) throws Throwable {
+            return invoker.invokeExact(args == null ? NO_ARGS : args);
+        }
+
+        // вызов дождался значения, вычисляемого другим потоком: учитывается и в обработчике, и в статистике метода
+        void recordCoalescedCall() {
+            coalescedCalls.increment();
+            stats.recordCoalescedCall();
         }
     }
 }
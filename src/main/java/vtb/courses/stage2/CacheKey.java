@@ -0,0 +1,14 @@
+package vtb.courses.stage2;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/** Поля, помеченные аннотацией <b>@CacheKey</b>, образуют состояние объекта для ключа кэша.
+ *  Если в классе кэшируемого объекта есть такие поля, вместо toString() используется {@link FieldStateKeyExtractor}
+ */
+@Target(ElementType.FIELD)
+@Retention(RetentionPolicy.RUNTIME)
+public @interface CacheKey {
+}
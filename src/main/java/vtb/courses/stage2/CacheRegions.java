@@ -0,0 +1,96 @@
+package vtb.courses.stage2;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/** Класс CacheRegions - общие для всех прокси хранилища кэша, задаются через <b>@Cache(region = "...")</b>
+ * <p>   Ключ значения в хранилище включает метод и состояние объекта, поэтому прокси объектов с одинаковым состоянием
+ *       используют одни и те же значения: метод вычисляется один раз на состояние, а не на каждый объект
+ * <p>   Регион существует, пока его используют прокси: каждый обработчик берёт регион в аренду {@link Lease},
+ *       аренда освобождается, когда обработчик собран сборщиком мусора. Регион без арендаторов удаляется
+ *       вместе со своими значениями и снимается с очистки {@link CacheCleaner}
+ * <p>   Режим удаления устаревших значений региона задаёт обработчик, создавший регион
+ */
+public class CacheRegions {
+    private static final Map<String, Region> REGIONS = new HashMap<>();
+
+    private CacheRegions() {
+    }
+
+    public static synchronized CacheStorage get(String name) {
+        Region region = REGIONS.get(name);
+        return region == null ? null : region.storage;
+    }
+
+    public static synchronized int size() {
+        return REGIONS.size();
+    }
+
+    private static synchronized CacheStorage acquire(String name, ExpiryMode expiryMode) {
+        Region region = REGIONS.get(name);
+        if (region == null) {
+            region = new Region(new CacheStorage(expiryMode));
+            REGIONS.put(name, region);
+            if (expiryMode == ExpiryMode.BACKGROUND) {
+                CacheInvocationHandler.getCacheCleaner().addCacheStorage(region.storage);
+            }
+        }
+        region.references++;
+        return region.storage;
+    }
+
+    private static synchronized void release(String name) {
+        Region region = REGIONS.get(name);
+        if (region != null && --region.references == 0) {
+            REGIONS.remove(name);
+            CacheInvocationHandler.unregisterCacheStorage(region.storage);
+        }
+    }
+
+    private static class Region {
+        private final CacheStorage storage;
+        private int references;
+
+        private Region(CacheStorage storage) {
+            this.storage = storage;
+        }
+    }
+
+    /** Регионы, используемые одним обработчиком. Каждый регион учитывается один раз, сколько бы методов его ни использовали.
+     *  Не ссылается на обработчик, поэтому может освобождаться из java.lang.ref.Cleaner
+     */
+    static class Lease implements Runnable {
+        private final Set<String> names = new HashSet<>();
+
+        synchronized CacheStorage acquire(String name, ExpiryMode expiryMode) {
+            if (names.contains(name)) {
+                return get(name);
+            }
+            CacheStorage storage = CacheRegions.acquire(name, expiryMode);
+            names.add(name);
+            return storage;
+        }
+
+        synchronized boolean isEmpty() {
+            return names.isEmpty();
+        }
+
+        // освобождает регионы, которые обработчик больше не использует
+        synchronized void retainOnly(Set<String> used) {
+            names.removeIf(name -> {
+                if (used.contains(name)) {
+                    return false;
+                }
+                release(name);
+                return true;
+            });
+        }
+
+        @Override
+        public synchronized void run() {
+            retainOnly(Set.of());
+        }
+    }
+}
@@ -0,0 +1,385 @@
+package vtb.courses.stage2;
+
+import java.lang.reflect.Method;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+import vtb.courses.stage2.CacheStorage.TimedValue;
+
+/** Класс CacheSegment - часть кэша, относящаяся к одному методу
+ * <p>   Сегменты независимы друг от друга, поэтому вызовы разных кэшируемых методов не конкурируют между собой
+ * <p>   Внутри сегмента значения хранятся в ConcurrentHashMap: чтение не блокируется,
+ *       а запись блокирует только одну корзину таблицы
+ * <p>   Если для метода задано ограничение <b>@Cache(maxSize/maxWeight)</b>, сегмент вытесняет значения
+ *       по политике W-TinyLFU: новые значения попадают в небольшое окно (1% ёмкости), а вышедшие из окна
+ *       допускаются в основную область, только если к ним обращались чаще, чем к кандидату на вытеснение.
+ *       Кандидат на вытеснение в основной области выбирается по алгоритму CLOCK (второй шанс).
+ *       Вытеснение выполняется при записи под блокировкой сегмента и в среднем занимает O(1),
+ *       чтение только отмечает обращение и не блокируется
+ * <p>   Значения с ограниченным временем жизни раскладываются по колесу таймеров {@link TimerWheel},
+ *       так что очистка затрагивает только те значения, время жизни которых подошло к концу
+ * <p>   Если задан <b>@Cache(offHeapThreshold)</b>, крупные значения сериализуются и переносятся в {@link OffHeapStore}.
+ *       Ограничения maxSize/maxWeight действуют на все значения метода, offHeapCapacity - только на вынесенные из кучи
+ */
+class CacheSegment {
+    private final Method method;
+    private final CacheStats stats;
+    private final Map<CompositeKey, TimedValue> values;
+    // значения, которые прямо сейчас вычисляются: остальные потоки ждут их, а не вызывают метод повторно
+    private final Map<CompositeKey, CompletableFuture<Object>> loading;
+    private final ReentrantLock lock;
+    private final TimerWheel timerWheel;
+
+    // ограничения и состояние политики вытеснения, используются только если ограничение задано
+    private final boolean bounded;
+    private final long maxSize;
+    private final long maxWeight;
+    private final Weigher weigher;
+    private final FrequencySketch sketch;
+    private final AccessQueue window;
+    private final AccessQueue main;
+    private long totalWeight;
+
+    // хранилище вне кучи, используется только если задан порог размера значения
+    private final OffHeapStore offHeap;
+    private final long offHeapThreshold;
+    private final ValueSerializer serializer;
+
+    CacheSegment(Method method) {
+        this.method = method;
+        this.stats = CacheStats.of(method);
+        this.values = new ConcurrentHashMap<>();
+        this.loading = new ConcurrentHashMap<>();
+        this.lock = new ReentrantLock();
+        this.timerWheel = new TimerWheel(this);
+
+        Cache cache = method.getAnnotation(Cache.class);
+        this.maxSize = cache == null ? 0 : cache.maxSize();
+        this.maxWeight = cache == null ? 0 : cache.maxWeight();
+        this.bounded = maxSize > 0 || maxWeight > 0;
+        if (bounded) {
+            this.weigher = newInstance(cache.weigher());
+            this.sketch = new FrequencySketch(maxSize > 0 ? maxSize : 1024);
+            this.window = new AccessQueue();
+            this.main = new AccessQueue();
+        } else {
+            this.weigher = null;
+            this.sketch = null;
+            this.window = null;
+            this.main = null;
+        }
+
+        this.offHeapThreshold = cache == null ? 0 : cache.offHeapThreshold();
+        if (offHeapThreshold > 0) {
+            this.offHeap = new OffHeapStore(this, cache.offHeapCapacity());
+            this.serializer = newInstance(cache.serializer());
+        } else {
+            this.offHeap = null;
+            this.serializer = null;
+        }
+    }
+
+    private static <T> T newInstance(Class<T> instanceClass) {
+        try {
+            return instanceClass.getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalArgumentException("Не удалось создать " + instanceClass.getName(), e);
+        }
+    }
+
+    Method getMethod() {
+        return method;
+    }
+
+    TimedValue get(CompositeKey key) {
+        TimedValue timedValue = values.get(key);
+        if (bounded) {
+            sketch.increment(key.hashCode());
+            if (timedValue != null && !timedValue.accessed) {
+                timedValue.accessed = true;
+            }
+        }
+        return timedValue;
+    }
+
+    // Запись выполняется под блокировкой сегмента: она случается только при промахе, т.е. после вызова исходного метода
+    void put(CompositeKey key, TimedValue value) {
+        byte[] bytes = prepare(key, value);
+        lock.lock();
+        try {
+            putLocked(key, value, bytes);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Пакетная запись: вес и сериализация считаются до блокировки, блокировка берётся один раз на весь пакет
+    void putAll(List<CompositeKey> keys, List<TimedValue> timedValues) {
+        byte[][] bytes = new byte[keys.size()][];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = prepare(keys.get(i), timedValues.get(i));
+        }
+        lock.lock();
+        try {
+            for (int i = 0; i < bytes.length; i++) {
+                putLocked(keys.get(i), timedValues.get(i), bytes[i]);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // сериализуем до блокировки, под блокировкой только копируем байты.
+    // Значение, которое по оценке сериализатора заведомо меньше порога, остаётся в куче без сериализации
+    private byte[] prepare(CompositeKey key, TimedValue value) {
+        value.key = key;
+        if (bounded) {
+            value.weight = weigher.weigh(key, value.getValue());
+        }
+        if (offHeap == null || value.getValue() == null) {
+            return null;
+        }
+        long estimate = serializer.estimateSize(value.getValue());
+        if (estimate >= 0 && estimate < offHeapThreshold) {
+            return null;
+        }
+        return serializer.serialize(value.getValue());
+    }
+
+    private void putLocked(CompositeKey key, TimedValue value, byte[] bytes) {
+        if (bytes != null && bytes.length >= offHeapThreshold) {
+            value.moveOffHeap(offHeap.store(bytes, value));
+        }
+        TimedValue previous = values.put(key, value);
+        if (previous != null) {
+            unlink(previous);
+        }
+        if (value.getTtl() != 0) {
+            timerWheel.schedule(value);
+        }
+        if (bounded) {
+            sketch.increment(key.hashCode());
+            window.addLast(value);
+            totalWeight += value.weight;
+            evict();
+        }
+    }
+
+    /** Восстанавливает значение, хранящееся вне кучи. Блокировка сегмента не берётся - чтение в OffHeapStore оптимистичное
+     * @return значение или null, если его успели вытеснить
+     */
+    Object readOffHeap(TimedValue timedValue) {
+        byte[] bytes = offHeap.read(timedValue.offHeapSlot, timedValue);
+        return bytes == null ? null : serializer.deserialize(bytes);
+    }
+
+    CompletableFuture<Object> startLoading(CompositeKey key, CompletableFuture<Object> loader) {
+        return loading.putIfAbsent(key, loader);
+    }
+
+    void finishLoading(CompositeKey key, CompletableFuture<Object> loader) {
+        loading.remove(key, loader);
+    }
+
+    int size() {
+        return values.size();
+    }
+
+    Collection<TimedValue> values() {
+        return values.values();
+    }
+
+    long weight() {
+        return totalWeight;
+    }
+
+    long offHeapBytes() {
+        return offHeap == null ? 0 : offHeap.usedBytes();
+    }
+
+    int timerBuckets() {
+        lock.lock();
+        try {
+            return timerWheel.buckets();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Удаляет из сегмента значения с истёкшим временем жизни
+     * @return количество просмотренных значений
+     */
+    long clearTimeoutedValues(long now) {
+        lock.lock();
+        try {
+            return timerWheel.advance(now);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Ленивая очистка при чтении в режиме {@link ExpiryMode#LAZY}. Колесо продвигается не чаще одного такта (~1 мс)
+     *  и только если сегмент не занят записью: чтение никогда не ждёт блокировку
+     */
+    void expireOnRead(long now) {
+        if (timerWheel.isDue(now) && lock.tryLock()) {
+            try {
+                timerWheel.advance(now);
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    // Вызывается колесом таймеров для значения, время жизни которого истекло. Значение уже снято с колеса
+    void expire(TimedValue timedValue) {
+        evictEntry(timedValue);
+        stats.recordExpiration();
+    }
+
+    /** Удаляет все значения метода для состояния объекта state (null - значения объектов без состояния)
+     * <p>   Просматривает все значения сегмента - O(размера сегмента) под блокировкой записи. Индекс по состоянию
+     *       удорожил бы каждую запись ради редкого события: сюда приходят только сообщения второго уровня
+     *       о вызове @Mutator на другом узле
+     */
+    void invalidate(Object state) {
+        lock.lock();
+        try {
+            for (TimedValue timedValue : values.values()) {
+                if (Objects.deepEquals(timedValue.key.getState(), state)) {
+                    evictEntry(timedValue);
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Вызывается хранилищем вне кучи, которому не хватило места
+    void evictOffHeap(TimedValue timedValue) {
+        evictEntry(timedValue);
+        stats.recordEviction();
+    }
+
+    private void unlink(TimedValue timedValue) {
+        timerWheel.deschedule(timedValue);
+        if (timedValue.isOffHeap()) {
+            offHeap.free(timedValue.offHeapSlot, timedValue);
+        }
+        if (timedValue.queue != null) {
+            timedValue.queue.remove(timedValue);
+            totalWeight -= timedValue.weight;
+        }
+    }
+
+    // удаляем из таблицы, только если значение не успели перезаписать в другом потоке
+    private void evictEntry(TimedValue timedValue) {
+        values.remove(timedValue.key, timedValue);
+        unlink(timedValue);
+    }
+
+    private boolean overCapacity() {
+        return (maxSize > 0 && window.size + main.size > maxSize)
+                || (maxWeight > 0 && totalWeight > maxWeight);
+    }
+
+    private boolean windowOverflow() {
+        return (maxSize > 0 && window.size > Long.max(1, maxSize / 100))
+                || (maxWeight > 0 && window.weight > Long.max(1, maxWeight / 100));
+    }
+
+    private void evict() {
+        // значения, вышедшие из окна, соревнуются за место в основной области
+        while (windowOverflow()) {
+            TimedValue candidate = window.first();
+            window.remove(candidate);
+            main.addLast(candidate);
+            if (overCapacity()) {
+                TimedValue victim = selectVictim(candidate);
+                if (victim != null && sketch.frequency(candidate.key.hashCode()) <= sketch.frequency(victim.key.hashCode())) {
+                    evictEntry(candidate);
+                    stats.recordEviction();
+                } else if (victim != null) {
+                    evictEntry(victim);
+                    stats.recordEviction();
+                }
+            }
+        }
+        // одно значение может быть тяжелее нескольких вытесненных, поэтому дочищаем до соблюдения ограничений
+        while (overCapacity()) {
+            TimedValue victim = selectVictim(null);
+            evictEntry(victim != null ? victim : window.first());
+            stats.recordEviction();
+        }
+    }
+
+    // CLOCK: значения, к которым обращались, получают второй шанс и уходят в конец очереди
+    private TimedValue selectVictim(TimedValue excluded) {
+        for (long i = 2 * main.size; i > 0; i--) {
+            TimedValue timedValue = main.first();
+            if (timedValue == null) {
+                return null;
+            }
+            if (timedValue == excluded || timedValue.accessed) {
+                timedValue.accessed = false;
+                main.remove(timedValue);
+                main.addLast(timedValue);
+            } else {
+                return timedValue;
+            }
+        }
+        TimedValue first = main.first();
+        return first != excluded ? first : null;
+    }
+
+    /** Двусвязный список значений, ссылки хранятся в самих значениях, поэтому вставка и удаление - O(1)
+     *  Все операции выполняются под блокировкой сегмента
+     */
+    static class AccessQueue {
+        private TimedValue head;
+        private TimedValue tail;
+        private long size;
+        private long weight;
+
+        TimedValue first() {
+            return head;
+        }
+
+        void addLast(TimedValue timedValue) {
+            timedValue.queue = this;
+            timedValue.prev = tail;
+            timedValue.next = null;
+            if (tail == null) {
+                head = timedValue;
+            } else {
+                tail.next = timedValue;
+            }
+            tail = timedValue;
+            size++;
+            weight += timedValue.weight;
+        }
+
+        void remove(TimedValue timedValue) {
+            if (timedValue.prev == null) {
+                head = timedValue.next;
+            } else {
+                timedValue.prev.next = timedValue.next;
+            }
+            if (timedValue.next == null) {
+                tail = timedValue.prev;
+            } else {
+                timedValue.next.prev = timedValue.prev;
+            }
+            timedValue.prev = null;
+            timedValue.next = null;
+            timedValue.queue = null;
+            size--;
+            weight -= timedValue.weight;
+        }
+    }
+}
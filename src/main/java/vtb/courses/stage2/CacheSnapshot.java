@@ -0,0 +1,300 @@
+package vtb.courses.stage2;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+import vtb.courses.stage2.CacheStorage.TimedValue;
+
+import static java.lang.System.currentTimeMillis;
+import static java.lang.System.nanoTime;
+
+/** Класс CacheSnapshot - снимок содержимого {@link CacheStorage} в файле, чтобы после перезапуска
+ *  не вычислять заново все кэшируемые значения
+ * <p>   Снимок записывается методом <b>save()</b> или периодически после <b>saveEvery()</b>. Файл сначала пишется рядом
+ *       и только затем подменяет прежний, так что прерванная запись не портит последний снимок
+ * <p>   Существующий файл при создании снимка отображается в память (FileChannel.map) и не читается целиком:
+ *       строится только индекс хэшей ключей, а значение десериализуется при первом промахе по его ключу.
+ *       Значения, время жизни которых истекло, не восстанавливаются
+ * <p>   Формат файла: заголовок (сигнатура, версия формата, время записи, количество записей, CRC32 заголовка),
+ *       затем записи (длина, CRC32 записи, хэш ключа, время последнего обращения, время жизни, сигнатура метода,
+ *       сериализованные состояние с аргументами и значение). Файл с другой сигнатурой или версией не используется,
+ *       запись с неверной контрольной суммой пропускается
+ * <p>   Метод идентифицируется строкой "класс#имя(типы параметров)", которая не меняется между запусками
+ * <p>   Снимок подключается к одному хранилищу: его файл хранит содержимое именно этого хранилища,
+ *       поэтому подключение к другому хранилищу отклоняется
+ */
+public class CacheSnapshot implements Closeable {
+    private static final int MAGIC = 0x56544243;
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 24;
+    // длина, CRC32, хэш ключа, время последнего обращения, время жизни
+    private static final int RECORD_HEADER_SIZE = 28;
+
+    private final Path file;
+    private final ValueSerializer serializer;
+    private final Map<Method, byte[]> signatures = new ConcurrentHashMap<>();
+
+    // отображённый файл и индекс записей, отсортированный по хэшу ключа: хэш в старших 32 битах, позиция - в младших
+    private final ByteBuffer mapped;
+    private final long[] index;
+
+    // записи файла идут по очереди: периодическая, явная и финальная в close() пишут один и тот же временный файл
+    private final Object writeLock = new Object();
+    private ScheduledExecutorService scheduler;
+    private ScheduledFuture<?> scheduled;
+    private CacheStorage owner;
+
+    public CacheSnapshot(Path file) throws IOException {
+        this(file, new ValueSerializer.Java());
+    }
+
+    public CacheSnapshot(Path file, ValueSerializer serializer) throws IOException {
+        this.file = file;
+        this.serializer = serializer;
+        ByteBuffer buffer = map(file);
+        long[] records = buffer == null ? null : readIndex(buffer);
+        this.mapped = records == null ? null : buffer;
+        this.index = records == null ? new long[0] : records;
+    }
+
+    private static ByteBuffer map(Path file) throws IOException {
+        if (!Files.isRegularFile(file) || Files.size(file) < HEADER_SIZE || Files.size(file) > Integer.MAX_VALUE) {
+            return null;
+        }
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+    }
+
+    // Проверяет заголовок и собирает индекс. Для файла чужого формата или с повреждённым заголовком возвращает null
+    private static long[] readIndex(ByteBuffer buffer) {
+        CRC32 crc = new CRC32();
+        crc.update(buffer.slice(0, HEADER_SIZE - 4));
+        if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION || buffer.getInt(HEADER_SIZE - 4) != (int) crc.getValue()) {
+            return null;
+        }
+        int count = buffer.getInt(16);
+        long[] records = new long[count];
+        int position = HEADER_SIZE;
+        int found = 0;
+        // обрезанный файл читаем до последней целой записи
+        while (found < count && position + RECORD_HEADER_SIZE <= buffer.limit()) {
+            int length = buffer.getInt(position);
+            if (length < RECORD_HEADER_SIZE || length > buffer.limit() - position) {
+                break;
+            }
+            records[found++] = ((long) buffer.getInt(position + 8) << 32) | position;
+            position += length;
+        }
+        records = Arrays.copyOf(records, found);
+        Arrays.sort(records);
+        return records;
+    }
+
+    /** Восстанавливает значение из снимка
+     * @return значение или null, если его нет в снимке, оно устарело или запись повреждена
+     */
+    TimedValue restore(Method method, CompositeKey key) {
+        if (index.length == 0) {
+            return null;
+        }
+        byte[] signature = signature(method);
+        byte[] keyBytes = serializer.serialize(new Object[]{key.getState(), key.getArgs()});
+        if (keyBytes == null) {
+            return null;
+        }
+        int hash = hash(signature, keyBytes);
+        int i = Arrays.binarySearch(index, (long) hash << 32);
+        for (i = i < 0 ? -i - 1 : i; i < index.length && (int) (index[i] >>> 32) == hash; i++) {
+            TimedValue timedValue = restore((int) index[i], signature, keyBytes);
+            if (timedValue != null) {
+                return timedValue;
+            }
+        }
+        return null;
+    }
+
+    private TimedValue restore(int position, byte[] signature, byte[] keyBytes) {
+        int length = mapped.getInt(position);
+        CRC32 crc = new CRC32();
+        crc.update(mapped.slice(position + 8, length - 8));
+        if (mapped.getInt(position + 4) != (int) crc.getValue()) {
+            return null;
+        }
+        long lastAccess = mapped.getLong(position + 12);
+        long ttl = mapped.getLong(position + 20);
+        int offset = position + RECORD_HEADER_SIZE;
+        // сигнатуру и ключ сравниваем прямо в отображённом файле, без копирования в кучу
+        if (!matches(offset, signature)) {
+            return null;
+        }
+        offset += 4 + signature.length;
+        if (!matches(offset, keyBytes)) {
+            return null;
+        }
+        offset += 4 + keyBytes.length;
+        if (ttl != 0 && lastAccess + ttl < currentTimeMillis()) {
+            return null;
+        }
+        byte[] valueBytes = new byte[mapped.getInt(offset)];
+        mapped.get(offset + 4, valueBytes);
+        return new TimedValue(serializer.deserialize(valueBytes), ttl);
+    }
+
+    private boolean matches(int offset, byte[] bytes) {
+        return mapped.getInt(offset) == bytes.length
+                && mapped.slice(offset + 4, bytes.length).equals(ByteBuffer.wrap(bytes));
+    }
+
+    /** Записывает снимок хранилища. Значения, которые не удалось сериализовать, пропускаются.
+     *  Одновременные вызовы записывают файл по очереди
+     */
+    public void save(CacheStorage storage) throws IOException {
+        long now = nanoTime();
+        long wallNow = currentTimeMillis();
+        List<byte[]> records = new ArrayList<>();
+        int size = HEADER_SIZE;
+        for (CacheSegment segment : storage.getSegments()) {
+            byte[] signature = signature(segment.getMethod());
+            for (TimedValue timedValue : segment.values()) {
+                Object value = timedValue.isOffHeap() ? segment.readOffHeap(timedValue) : timedValue.getValue();
+                CompositeKey key = timedValue.key;
+                if (value == null || key == null || timedValue.isExpired(now)) {
+                    continue;
+                }
+                byte[] keyBytes = serializer.serialize(new Object[]{key.getState(), key.getArgs()});
+                byte[] valueBytes = serializer.serialize(value);
+                if (keyBytes == null || valueBytes == null) {
+                    continue;
+                }
+                long lastAccess = wallNow - (now - timedValue.getTime()) / 1000000L;
+                byte[] record = record(signature, keyBytes, valueBytes, lastAccess, timedValue.getTtl());
+                records.add(record);
+                size += record.length;
+            }
+        }
+
+        synchronized (writeLock) {
+            write(records, size, wallNow);
+        }
+    }
+
+    private void write(List<byte[]> records, int size, long wallNow) throws IOException {
+        Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+            buffer.putInt(MAGIC).putInt(VERSION).putLong(wallNow).putInt(records.size());
+            CRC32 crc = new CRC32();
+            crc.update(buffer.slice(0, HEADER_SIZE - 4));
+            buffer.putInt((int) crc.getValue());
+            for (byte[] record : records) {
+                buffer.put(record);
+            }
+            buffer.force();
+        }
+        Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static byte[] record(byte[] signature, byte[] keyBytes, byte[] valueBytes, long lastAccess, long ttl) {
+        int length = RECORD_HEADER_SIZE + 12 + signature.length + keyBytes.length + valueBytes.length;
+        ByteBuffer record = ByteBuffer.allocate(length);
+        record.putInt(length).putInt(0).putInt(hash(signature, keyBytes)).putLong(lastAccess).putLong(ttl)
+                .putInt(signature.length).put(signature)
+                .putInt(keyBytes.length).put(keyBytes)
+                .putInt(valueBytes.length).put(valueBytes);
+        CRC32 crc = new CRC32();
+        crc.update(record.array(), 8, length - 8);
+        record.putInt(4, (int) crc.getValue());
+        return record.array();
+    }
+
+    /** Привязывает снимок к хранилищу. Повторная привязка к тому же хранилищу допускается
+     * @throws IllegalStateException если снимок уже подключён к другому хранилищу
+     */
+    synchronized void attach(CacheStorage storage) {
+        if (owner != null && owner != storage) {
+            throw new IllegalStateException("Снимок " + file + " уже подключён к другому хранилищу");
+        }
+        owner = storage;
+    }
+
+    /** Периодически записывает снимок хранилища в фоновом daemon-потоке. Последний снимок записывается в <b>close()</b>
+     * <p>   Повторный вызов меняет период: прежняя периодическая запись отменяется
+     * @throws IllegalStateException если снимок уже подключён к другому хранилищу
+     */
+    public synchronized void saveEvery(CacheStorage storage, long periodMillis) {
+        attach(storage);
+        if (scheduler == null) {
+            ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1, runnable -> {
+                Thread thread = new Thread(runnable, "cache-snapshot");
+                thread.setDaemon(true);
+                return thread;
+            });
+            executor.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+            scheduler = executor;
+        }
+        if (scheduled != null) {
+            scheduled.cancel(false);
+        }
+        scheduled = scheduler.scheduleWithFixedDelay(() -> {
+            try {
+                save(storage);
+            } catch (IOException e) {
+                // не удалось записать - остаётся предыдущий снимок, попробуем в следующий раз
+            }
+        }, periodMillis, periodMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /** Останавливает периодическую запись, дожидаясь начатой, и записывает последний снимок хранилища,
+     *  к которому подключён снимок, - в том числе без saveEvery()
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (scheduler != null) {
+            scheduler.shutdown();
+            try {
+                scheduler.awaitTermination(1, TimeUnit.MINUTES);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            scheduler = null;
+            scheduled = null;
+        }
+        if (owner != null) {
+            save(owner);
+        }
+    }
+
+    private byte[] signature(Method method) {
+        byte[] signature = signatures.get(method);
+        if (signature == null) {
+            signature = CompositeKey.signatureOf(method).getBytes(StandardCharsets.UTF_8);
+            signatures.put(method, signature);
+        }
+        return signature;
+    }
+
+    private static int hash(byte[] signature, byte[] keyBytes) {
+        return 31 * Arrays.hashCode(signature) + Arrays.hashCode(keyBytes);
+    }
+}
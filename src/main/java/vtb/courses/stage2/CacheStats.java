@@ -0,0 +1,362 @@
+package vtb.courses.stage2;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.lang.reflect.Method;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.ServiceLoader;
+import java.util.StringJoiner;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Collectors;
+
+/** Класс CacheStats - счётчики кэшируемого метода: попадания, промахи, инвалидации, вытеснения, истечения,
+ *  объединённые вызовы и время вычисления значений
+ * <p>   Статистика одна на метод для всех прокси и хранилищ, получить её можно через <b>CacheStats.of(method)</b>.
+ *       При создании она регистрируется как MBean {@link CacheStatsMXBean}
+ * <p>   Статистика хранится при классе метода (ClassValue) и не удерживает ни класс, ни его загрузчик:
+ *       MBean ссылается на неё слабо, а MBean собранной статистики снимается с регистрации при создании следующей
+ * <p>   Счётчики построены на LongAdder, поэтому их обновление из многих потоков не создаёт конкуренции.
+ *       Слушатели {@link CacheStatsListener} вызываются только если они зарегистрированы
+ */
+public class CacheStats implements CacheStatsMXBean {
+    private static final int HISTOGRAM_SIZE = 32;
+    private static final ClassValue<Map<Method, CacheStats>> STATS = new ClassValue<>() {
+        @Override
+        protected Map<Method, CacheStats> computeValue(Class<?> type) {
+            return new ConcurrentHashMap<>();
+        }
+    };
+    // MBean статистики, собранной вместе со своим классом
+    private static final ReferenceQueue<CacheStats> COLLECTED = new ReferenceQueue<>();
+    private static final CleanerStats CLEANER_STATS = new CleanerStats();
+    private static volatile CacheStatsListener[] listeners = loadListeners();
+
+    static {
+        register(CLEANER_STATS, "vtb.courses.stage2:type=CleanerStats");
+    }
+
+    private final Method method;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder invalidations = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final LongAdder expirations = new LongAdder();
+    private final LongAdder coalescedCalls = new LongAdder();
+    private final LongAdder loads = new LongAdder();
+    private final LongAdder totalLoadTime = new LongAdder();
+    private final LongAdder[] loadTimeHistogram = new LongAdder[HISTOGRAM_SIZE];
+
+    private CacheStats(Method method) {
+        this.method = method;
+        for (int i = 0; i < HISTOGRAM_SIZE; i++) {
+            loadTimeHistogram[i] = new LongAdder();
+        }
+    }
+
+    public static CacheStats of(Method method) {
+        Map<Method, CacheStats> classStats = STATS.get(method.getDeclaringClass());
+        CacheStats stats = classStats.get(method);
+        if (stats == null) {
+            unregisterCollected();
+            CacheStats created = new CacheStats(method);
+            stats = classStats.putIfAbsent(method, created);
+            if (stats == null) {
+                stats = created;
+                StringJoiner parameters = new StringJoiner(",", method.getName() + "(", ")");
+                for (Class<?> parameterType : method.getParameterTypes()) {
+                    parameters.add(parameterType.getSimpleName());
+                }
+                String name = "vtb.courses.stage2:type=CacheStats,class=" + ObjectName.quote(method.getDeclaringClass().getName())
+                        + ",method=" + ObjectName.quote(parameters.toString());
+                register(new WeakView(stats, name), name);
+            }
+        }
+        return stats;
+    }
+
+    private static void register(Object mbean, String name) {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(mbean, new ObjectName(name));
+        } catch (JMException e) {
+            // тот же метод из другого загрузчика классов или уже зарегистрированный MBean - статистика доступна через of()
+        }
+    }
+
+    private static void unregisterCollected() {
+        for (Reference<? extends CacheStats> view; (view = COLLECTED.poll()) != null; ) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(new ObjectName(((WeakView) view).name));
+            } catch (JMException e) {
+                // уже снят с регистрации
+            }
+        }
+    }
+
+    public static CleanerStats cleanerStats() {
+        return CLEANER_STATS;
+    }
+
+    public static synchronized void addListener(CacheStatsListener listener) {
+        CacheStatsListener[] updated = Arrays.copyOf(listeners, listeners.length + 1);
+        updated[listeners.length] = listener;
+        listeners = updated;
+    }
+
+    public static synchronized void removeListener(CacheStatsListener listener) {
+        listeners = Arrays.stream(listeners).filter(l -> l != listener).toArray(CacheStatsListener[]::new);
+    }
+
+    private static CacheStatsListener[] loadListeners() {
+        return ServiceLoader.load(CacheStatsListener.class).stream()
+                .map(ServiceLoader.Provider::get)
+                .collect(Collectors.toList())
+                .toArray(new CacheStatsListener[0]);
+    }
+
+    public Method getMethod() {
+        return method;
+    }
+
+    void recordHit() {
+        hits.increment();
+        for (CacheStatsListener listener : listeners) {
+            listener.onHit(method);
+        }
+    }
+
+    void recordMiss() {
+        misses.increment();
+        for (CacheStatsListener listener : listeners) {
+            listener.onMiss(method);
+        }
+    }
+
+    void recordLoad(long loadNanos) {
+        loads.increment();
+        totalLoadTime.add(loadNanos);
+        long micros = loadNanos / 1000;
+        int bucket = micros <= 0 ? 0 : Math.min(HISTOGRAM_SIZE - 1, 63 - Long.numberOfLeadingZeros(micros));
+        loadTimeHistogram[bucket].increment();
+        for (CacheStatsListener listener : listeners) {
+            listener.onLoad(method, loadNanos);
+        }
+    }
+
+    void recordInvalidation() {
+        invalidations.increment();
+        for (CacheStatsListener listener : listeners) {
+            listener.onInvalidation(method);
+        }
+    }
+
+    void recordEviction() {
+        evictions.increment();
+        for (CacheStatsListener listener : listeners) {
+            listener.onEviction(method);
+        }
+    }
+
+    void recordExpiration() {
+        expirations.increment();
+        for (CacheStatsListener listener : listeners) {
+            listener.onExpiration(method);
+        }
+    }
+
+    void recordCoalescedCall() {
+        coalescedCalls.increment();
+        for (CacheStatsListener listener : listeners) {
+            listener.onCoalescedCall(method);
+        }
+    }
+
+    static void recordCleanerPass(long passNanos, long scanned) {
+        CLEANER_STATS.record(passNanos, scanned);
+        for (CacheStatsListener listener : listeners) {
+            listener.onCleanerPass(passNanos, scanned);
+        }
+    }
+
+    @Override
+    public long getHits() {
+        return hits.sum();
+    }
+
+    @Override
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    @Override
+    public double getHitRate() {
+        long hitCount = hits.sum();
+        long requests = hitCount + misses.sum();
+        return requests == 0 ? 1.0 : (double) hitCount / requests;
+    }
+
+    @Override
+    public long getInvalidations() {
+        return invalidations.sum();
+    }
+
+    @Override
+    public long getEvictions() {
+        return evictions.sum();
+    }
+
+    @Override
+    public long getExpirations() {
+        return expirations.sum();
+    }
+
+    @Override
+    public long getCoalescedCalls() {
+        return coalescedCalls.sum();
+    }
+
+    @Override
+    public long getLoads() {
+        return loads.sum();
+    }
+
+    @Override
+    public long getTotalLoadTime() {
+        return totalLoadTime.sum();
+    }
+
+    @Override
+    public long[] getLoadTimeHistogram() {
+        long[] histogram = new long[HISTOGRAM_SIZE];
+        for (int i = 0; i < HISTOGRAM_SIZE; i++) {
+            histogram[i] = loadTimeHistogram[i].sum();
+        }
+        return histogram;
+    }
+
+    @Override
+    public String toString() {
+        return "CacheStats{" + method.getDeclaringClass().getSimpleName() + "." + method.getName() +
+                ", hits=" + getHits() +
+                ", misses=" + getMisses() +
+                ", invalidations=" + getInvalidations() +
+                ", evictions=" + getEvictions() +
+                ", expirations=" + getExpirations() +
+                ", coalescedCalls=" + getCoalescedCalls() +
+                ", loads=" + getLoads() +
+                '}';
+    }
+
+    /** MBean статистики метода. Ссылается на статистику слабо, чтобы регистрация в MBeanServer
+     *  не удерживала метод, его класс и загрузчик классов
+     */
+    private static class WeakView extends WeakReference<CacheStats> implements CacheStatsMXBean {
+        private final String name;
+
+        private WeakView(CacheStats stats, String name) {
+            super(stats, COLLECTED);
+            this.name = name;
+        }
+
+        @Override
+        public long getHits() {
+            CacheStats stats = get();
+            return stats == null ? 0 : stats.getHits();
+        }
+
+        @Override
+        public long getMisses() {
+            CacheStats stats = get();
+            return stats == null ? 0 : stats.getMisses();
+        }
+
+        @Override
+        public double getHitRate() {
+            CacheStats stats = get();
+            return stats == null ? 1.0 : stats.getHitRate();
+        }
+
+        @Override
+        public long getInvalidations() {
+            CacheStats stats = get();
+            return stats == null ? 0 : stats.getInvalidations();
+        }
+
+        @Override
+        public long getEvictions() {
+            CacheStats stats = get();
+            return stats == null ? 0 : stats.getEvictions();
+        }
+
+        @Override
+        public long getExpirations() {
+            CacheStats stats = get();
+            return stats == null ? 0 : stats.getExpirations();
+        }
+
+        @Override
+        public long getCoalescedCalls() {
+            CacheStats stats = get();
+            return stats == null ? 0 : stats.getCoalescedCalls();
+        }
+
+        @Override
+        public long getLoads() {
+            CacheStats stats = get();
+            return stats == null ? 0 : stats.getLoads();
+        }
+
+        @Override
+        public long getTotalLoadTime() {
+            CacheStats stats = get();
+            return stats == null ? 0 : stats.getTotalLoadTime();
+        }
+
+        @Override
+        public long[] getLoadTimeHistogram() {
+            CacheStats stats = get();
+            return stats == null ? new long[HISTOGRAM_SIZE] : stats.getLoadTimeHistogram();
+        }
+    }
+
+    /** Статистика прохода очистки по всем хранилищам
+     */
+    public static class CleanerStats implements CleanerStatsMXBean {
+        private final LongAdder passes = new LongAdder();
+        private final LongAdder totalPassTime = new LongAdder();
+        private final LongAdder entriesScanned = new LongAdder();
+        private volatile long lastPassTime;
+
+        void record(long passNanos, long scanned) {
+            passes.increment();
+            totalPassTime.add(passNanos);
+            entriesScanned.add(scanned);
+            lastPassTime = passNanos;
+        }
+
+        @Override
+        public long getPasses() {
+            return passes.sum();
+        }
+
+        @Override
+        public long getTotalPassTime() {
+            return totalPassTime.sum();
+        }
+
+        @Override
+        public long getLastPassTime() {
+            return lastPassTime;
+        }
+
+        @Override
+        public long getEntriesScanned() {
+            return entriesScanned.sum();
+        }
+    }
+}
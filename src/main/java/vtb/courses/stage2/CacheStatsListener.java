@@ -0,0 +1,41 @@
+package vtb.courses.stage2;
+
+import java.lang.reflect.Method;
+
+/** Получатель событий кэша для передачи их в систему мониторинга
+ * <p>   Регистрируется через {@link CacheStats#addListener} или автоматически через ServiceLoader
+ *       (файл META-INF/services/vtb.courses.stage2.CacheStatsListener)
+ * <p>   Методы вызываются в потоке, в котором произошло событие, в том числе на пути попадания в кэш,
+ *       поэтому должны быть быстрыми и не бросать исключений
+ */
+public interface CacheStatsListener {
+    default void onHit(Method method) {
+    }
+
+    default void onMiss(Method method) {
+    }
+
+    // значение вычислено за loadNanos наносекунд
+    default void onLoad(Method method, long loadNanos) {
+    }
+
+    // значение метода стало недействительным из-за вызова @Mutator
+    default void onInvalidation(Method method) {
+    }
+
+    // значение вытеснено из-за ограничения maxSize/maxWeight
+    default void onEviction(Method method) {
+    }
+
+    // значение удалено по истечении времени жизни
+    default void onExpiration(Method method) {
+    }
+
+    // вызов дождался значения, вычисляемого другим потоком, вместо собственного вызова метода
+    default void onCoalescedCall(Method method) {
+    }
+
+    // проход очистки хранилища занял passNanos наносекунд и просмотрел scanned значений
+    default void onCleanerPass(long passNanos, long scanned) {
+    }
+}
@@ -0,0 +1,27 @@
+package vtb.courses.stage2;
+
+/** Статистика кэшируемого метода, публикуемая через JMX
+ *  под именем vtb.courses.stage2:type=CacheStats,class=&lt;класс&gt;,method=&lt;метод(параметры)&gt;
+ */
+public interface CacheStatsMXBean {
+    long getHits();
+
+    long getMisses();
+
+    double getHitRate();
+
+    long getInvalidations();
+
+    long getEvictions();
+
+    long getExpirations();
+
+    long getCoalescedCalls();
+
+    long getLoads();
+
+    long getTotalLoadTime();
+
+    // i-й элемент - количество вычислений, занявших от 2^i до 2^(i+1) микросекунд, нулевой включает всё, что быстрее
+    long[] getLoadTimeHistogram();
+}
@@ -1,12 +1,16 @@
 package vtb.courses.stage2;
 
 import lombok.Getter;
-import lombok.Setter;
 
 import java.lang.reflect.Method;
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.function.BiConsumer;
 
 import static java.lang.System.nanoTime;
 
@@ -14,73 +18,300 @@ import static java.lang.System.nanoTime;
  * <p>   saveValue - помещает новое значение в кеш
  * <p>   getCachedValue - извлекает значение из кеша
  * <p>   clearTimeoutedValues - чистит кеш. вызывается сборщиком мусора
+ * <p>   Хранилище потокобезопасно: значения каждого метода лежат в своём сегменте {@link CacheSegment},
+ *       так что чтения не блокируются, а запись и очистка не мешают друг другу
+ * <p>   Значение с истёкшим временем жизни не возвращается, даже если очистка до него ещё не дошла.
+ *       В режиме {@link ExpiryMode#LAZY} очистка выполняется не потоком {@link CacheCleaner}, а попутно при записи и чтении:
+ *       колесо таймеров сегмента продвигается на каждом saveValue и не чаще раза в такт при чтении,
+ *       так что истёкшие значения удаляются и у методов, значения которых только читаются
+ * <p>   Если задан снимок {@link CacheSnapshot}, промах сначала ищется в нём
+ * <p>   Если задан второй уровень {@link CacheTier}, записанные значения отправляются в него в фоне,
+ *       а сообщения об изменении объектов с других узлов удаляют устаревшие значения из этого хранилища
  */
 
 public class CacheStorage {
-    private final Map<Method, Map<String, TimedValue>> methodValues;
+    private final Map<Method, CacheSegment> methodValues;
+    private final LongAccumulator minTtl;
     @Getter
-    private long minTtl = Long.MAX_VALUE;
+    private final ExpiryMode expiryMode;
+    // снимок, из которого восстанавливаются значения при промахе, если он задан
+    @Getter
+    private volatile CacheSnapshot snapshot;
+    // второй уровень кэша и подписка на его сообщения об изменении объектов, если он задан
+    private volatile RemoteTierClient remoteTier;
+    private final BiConsumer<String, byte[]> invalidationListener = this::onRemoteInvalidation;
 
     public CacheStorage() {
-        methodValues = new HashMap<>();
+        this(ExpiryMode.BACKGROUND);
+    }
+
+    public CacheStorage(ExpiryMode expiryMode) {
+        methodValues = new ConcurrentHashMap<>();
+        minTtl = new LongAccumulator(Long::min, Long.MAX_VALUE);
+        this.expiryMode = expiryMode;
+    }
+
+    public long getMinTtl() {
+        return minTtl.get();
+    }
+
+    /** Подключает снимок, в котором ищутся промахи
+     * @throws IllegalStateException если снимок уже подключён к другому хранилищу
+     */
+    public void setSnapshot(CacheSnapshot snapshot) {
+        if (snapshot != null) {
+            snapshot.attach(this);
+        }
+        this.snapshot = snapshot;
+    }
+
+    /** Подключает второй уровень кэша
+     * @param timeoutMillis сколько ждать ответа второго уровня при промахе, прежде чем вычислять значение самому
+     */
+    public synchronized void setRemoteTier(CacheTier tier, long timeoutMillis) {
+        detachRemoteTier();
+        if (tier != null) {
+            RemoteTierClient client = new RemoteTierClient(tier, new ValueSerializer.Java(), timeoutMillis);
+            client.subscribe(invalidationListener);
+            remoteTier = client;
+        }
+    }
+
+    synchronized void detachRemoteTier() {
+        if (remoteTier != null) {
+            remoteTier.unsubscribe(invalidationListener);
+            remoteTier = null;
+        }
+    }
+
+    boolean hasRemoteTier() {
+        return remoteTier != null;
     }
 
     // Помещает новое значение в кэш
-    public void saveValue(Method method, String objectState, Object value, long ttl) {
-        System.out.println("saveValue " + objectState + " - " + value + " - " + ttl);
-        Map<String, TimedValue> stateMap;
-        stateMap = methodValues.get(method);
-        if (stateMap == null){
-            stateMap = new ConcurrentHashMap<>();
-        }
-        methodValues.put(method, stateMap);
-        stateMap.put(objectState, new TimedValue(value, ttl));
+    public void saveValue(Method method, CompositeKey key, Object value, long ttl) {
+        CacheSegment segment = getOrCreateSegment(method);
+        segment.put(key, new TimedValue(value, ttl));
+        if (ttl != 0) {
+            minTtl.accumulate(ttl);
+        }
+        RemoteTierClient remote = remoteTier;
+        if (remote != null) {
+            remote.put(method, key, value, ttl);
+        }
+        if (expiryMode == ExpiryMode.LAZY) {
+            segment.clearTimeoutedValues(nanoTime());
+        }
+    }
+
+    // Помещает в кэш пакет значений одного метода за одну блокировку сегмента
+    public void saveValues(Method method, List<CompositeKey> keys, List<Object> values, long ttl) {
+        CacheSegment segment = getOrCreateSegment(method);
+        List<TimedValue> timedValues = new ArrayList<>(values.size());
+        for (Object value : values) {
+            timedValues.add(new TimedValue(value, ttl));
+        }
+        segment.putAll(keys, timedValues);
         if (ttl != 0) {
-            minTtl = Long.min(minTtl, ttl);
+            minTtl.accumulate(ttl);
+        }
+        RemoteTierClient remote = remoteTier;
+        if (remote != null) {
+            for (int i = 0; i < keys.size(); i++) {
+                remote.put(method, keys.get(i), values.get(i), ttl);
+            }
         }
+        if (expiryMode == ExpiryMode.LAZY) {
+            segment.clearTimeoutedValues(nanoTime());
+        }
+    }
 
+    public Object getCachedValue(Method method, CompositeKey key) throws IllegalArgumentException {
+        TimedValue timedValue = getTimedValue(method, key);
+        if (timedValue == null) {
+            throw new IllegalArgumentException();
+        }
+        return timedValue.getValue();
     }
 
-    public Object getCachedValue(Method method, String objectState) throws IllegalArgumentException {
-        Map<String, TimedValue> stateCache;
+    // Значение вместе со временем его вычисления или null, если значения нет. Обращение продлевает время жизни значения
+    TimedValue getTimedValue(Method method, CompositeKey key) {
+        CacheSegment segment;
         TimedValue timedValue;
-        if ((stateCache = methodValues.get(method)) != null &&
-                (timedValue = stateCache.get(objectState)) != null)
-        {
-            timedValue.setTime(nanoTime());
-            return timedValue.getValue();
-        } else {
-            throw new IllegalArgumentException();
+        if ((segment = methodValues.get(method)) != null && expiryMode == ExpiryMode.LAZY) {
+            segment.expireOnRead(nanoTime());
+        }
+        if (segment != null && (timedValue = segment.get(key)) != null) {
+            long now = nanoTime();
+            // устаревшее значение - это промах, его удалит очистка или перезапишет следующий saveValue
+            if (timedValue.isExpired(now)) {
+                return null;
+            }
+            timedValue.setTime(now);
+            if (timedValue.isOffHeap()) {
+                // значение вне кучи восстанавливается в копию, сама запись в кэше остаётся без ссылки на него
+                Object value = segment.readOffHeap(timedValue);
+                return value == null ? null : new TimedValue(value, timedValue.ttl, timedValue.created);
+            }
+            return timedValue;
+        }
+        return snapshot != null ? restore(method, key) : null;
+    }
+
+    // значение из снимка становится обычным значением кэша, дальше оно читается без обращения к снимку
+    private TimedValue restore(Method method, CompositeKey key) {
+        TimedValue timedValue = snapshot.restore(method, key);
+        if (timedValue != null) {
+            getOrCreateSegment(method).put(key, timedValue);
+            if (timedValue.getTtl() != 0) {
+                minTtl.accumulate(timedValue.getTtl());
+            }
+        }
+        return timedValue;
+    }
+
+    /** Ищет значение во втором уровне кэша и при успехе помещает его в первый
+     * @return значение или null, если второго уровня нет, значения в нём нет или он не ответил вовремя
+     */
+    TimedValue getRemoteValue(Method method, CompositeKey key, long ttl) {
+        RemoteTierClient remote = remoteTier;
+        TierKey tierKey;
+        byte[] bytes;
+        if (remote == null || (tierKey = remote.key(method, key)) == null || (bytes = remote.get(tierKey)) == null) {
+            return null;
+        }
+        TimedValue timedValue = new TimedValue(remote.deserialize(bytes), ttl);
+        getOrCreateSegment(method).put(key, timedValue);
+        if (ttl != 0) {
+            minTtl.accumulate(ttl);
+        }
+        return timedValue;
+    }
+
+    // Сообщает всем узлам второго уровня, что значения метода для состояния state устарели
+    void invalidate(Method method, Object state) {
+        RemoteTierClient remote = remoteTier;
+        if (remote != null) {
+            remote.invalidate(method, state);
         }
     }
 
-    public void clearTimeoutedValues() {
-        Map<String, TimedValue> stateMap;
-        for (Method method: methodValues.keySet()) {
-            for (String state: (stateMap = methodValues.get(method)).keySet()) {
-                TimedValue timedValue = stateMap.get(state);
-                if (timedValue.getTtl() != 0 && (nanoTime() - timedValue.getTime() > 1000000L * timedValue.getTtl())) {
-                    stateMap.remove(state);
+    private void onRemoteInvalidation(String signature, byte[] state) {
+        RemoteTierClient remote = remoteTier;
+        if (remote == null) {
+            return;
+        }
+        Object stateKey = null;
+        boolean decoded = false;
+        for (CacheSegment segment : methodValues.values()) {
+            if (remote.signature(segment.getMethod()).equals(signature)) {
+                // null - тоже состояние (объект без состояния), поэтому признак декодирования отдельный
+                if (!decoded) {
+                    stateKey = remote.deserializeState(state);
+                    decoded = true;
                 }
+                segment.invalidate(stateKey);
             }
         }
     }
 
-    class TimedValue {
-        @Getter @Setter
-        private long time;
+    /** Регистрирует вычисление значения по ключу
+     * @return вычисление, уже начатое другим потоком, или null, если вычислять должен вызывающий поток.
+     *         В этом случае по окончании он обязан вызвать <b>finishLoading()</b>
+     */
+    public CompletableFuture<Object> startLoading(Method method, CompositeKey key, CompletableFuture<Object> loader) {
+        return getOrCreateSegment(method).startLoading(key, loader);
+    }
+
+    public void finishLoading(Method method, CompositeKey key, CompletableFuture<Object> loader) {
+        getOrCreateSegment(method).finishLoading(key, loader);
+    }
+
+    CacheSegment getSegment(Method method) {
+        return methodValues.get(method);
+    }
+
+    Collection<CacheSegment> getSegments() {
+        return methodValues.values();
+    }
+
+    private CacheSegment getOrCreateSegment(Method method) {
+        CacheSegment segment = methodValues.get(method);
+        if (segment == null) {
+            segment = methodValues.computeIfAbsent(method, CacheSegment::new);
+        }
+        return segment;
+    }
+
+    /** Удаляет значения с истёкшим временем жизни. Затрагивает только значения, срок которых подошёл
+     * @return количество просмотренных значений
+     */
+    public long clearTimeoutedValues() {
+        long now = nanoTime();
+        long scanned = 0;
+        for (CacheSegment segment : methodValues.values()) {
+            scanned += segment.clearTimeoutedValues(now);
+        }
+        return scanned;
+    }
+
+    static class TimedValue {
         @Getter
-        private final Object value;
+        private volatile long time;
+        @Getter
+        private Object value;
         @Getter
         private final long ttl;
-        boolean toDelete;
+        // момент вычисления значения, в отличие от time не меняется при обращении
+        @Getter
+        private final long created;
+
+        CompositeKey key;
+        // служебные поля политики вытеснения, используются только сегментами с ограничением размера
+        long weight;
+        volatile boolean accessed;
+        CacheSegment.AccessQueue queue;
+        TimedValue prev;
+        TimedValue next;
+        // ссылки колеса таймеров, заполнены пока значение ожидает истечения времени жизни
+        TimedValue wheelPrev;
+        TimedValue wheelNext;
+        // ячейка хранилища вне кучи, -1 - значение хранится в куче. Не меняется после записи значения в сегмент:
+        // после вытеснения ячейка может достаться другому значению, поэтому хранилище сверяет владельца ячейки
+        int offHeapSlot = -1;
+
         public TimedValue(Object value, long ttl) {
             this.time = nanoTime();
+            this.created = time;
             this.value = value;
             this.ttl = ttl;
-            this.toDelete = false;
         }
-    }
-}
 
+        private TimedValue(Object value, long ttl, long created) {
+            this.time = nanoTime();
+            this.created = created;
+            this.value = value;
+            this.ttl = ttl;
+        }
+
+        public void setTime(long time) {
+            this.time = time;
+        }
+
+        // значение перенесено в хранилище вне кучи, в куче остаётся только номер ячейки
+        void moveOffHeap(int slot) {
+            if (slot >= 0) {
+                offHeapSlot = slot;
+                value = null;
+            }
+        }
+
+        boolean isOffHeap() {
+            return offHeapSlot >= 0;
+        }
 
+        boolean isExpired(long now) {
+            return ttl != 0 && now - time > 1000000L * ttl;
+        }
+    }
+}
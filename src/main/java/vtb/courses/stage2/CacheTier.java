@@ -0,0 +1,29 @@
+package vtb.courses.stage2;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.BiConsumer;
+
+/** Удалённый (второй) уровень кэша, общий для нескольких JVM. Подключается через <b>setRemoteTier()</b>
+ *  {@link CacheInvocationHandler} или {@link CacheStorage}, первым уровнем остаётся хранилище в памяти процесса
+ * <p>   Уровень работает с сериализованными ключами и значениями, все операции чтения и записи пакетные и асинхронные:
+ *       хранилище собирает запросы из разных потоков в пакеты и не ждёт ответа на один пакет перед отправкой следующего
+ * <p>   invalidate() удаляет значения метода для состояния объекта и рассылает сообщение об этом всем подписчикам,
+ *       в том числе другим JVM. Так вызов <b>@Mutator</b> в одной JVM сбрасывает устаревшие значения во всех
+ * <p>   Реализация для тестов и одной JVM - {@link LocalCacheTier}
+ */
+public interface CacheTier {
+    // Значения найденных ключей, отсутствующих ключей в результате нет
+    CompletableFuture<Map<TierKey, byte[]>> getAll(Collection<TierKey> keys);
+
+    // ttlMillis - время жизни значений с момента записи, 0 - без ограничения
+    CompletableFuture<Void> putAll(Map<TierKey, byte[]> entries, long ttlMillis);
+
+    void invalidate(String signature, byte[] state);
+
+    // listener получает сигнатуру метода и сериализованное состояние объекта из каждого сообщения invalidate()
+    void subscribe(BiConsumer<String, byte[]> listener);
+
+    void unsubscribe(BiConsumer<String, byte[]> listener);
+}
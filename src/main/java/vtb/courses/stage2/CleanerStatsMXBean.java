@@ -0,0 +1,13 @@
+package vtb.courses.stage2;
+
+/** Статистика очистки кэша, публикуемая через JMX под именем vtb.courses.stage2:type=CleanerStats
+ */
+public interface CleanerStatsMXBean {
+    long getPasses();
+
+    long getTotalPassTime();
+
+    long getLastPassTime();
+
+    long getEntriesScanned();
+}
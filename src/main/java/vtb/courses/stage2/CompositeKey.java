@@ -0,0 +1,243 @@
+package vtb.courses.stage2;
+
+import lombok.Getter;
+
+import java.lang.reflect.Method;
+import java.util.Arrays;
+import java.util.Objects;
+import java.util.StringJoiner;
+
+/** Класс CompositeKey - ключ кэша, объединяющий метод, состояние объекта и аргументы вызова
+ * <p>   Хэш вычисляется один раз при создании ключа, поэтому поиск в кэше не требует ни построения строк, ни повторного хэширования
+ * <p>   Для вызовов без аргументов, с одним и двумя аргументами используются отдельные реализации,
+ *       которые не хранят и не обходят массив аргументов. Единственный аргумент int или long хранится без упаковки
+ * <p>   Создаётся через фабричный метод <b>of()</b>. Сгенерированные процессором классы вызывают варианты
+ *       по числу аргументов (<b>of(method, state)</b>, <b>of(method, state, int/long)</b>, <b>ofArg()</b>, <b>ofArgs()</b>)
+ *       и не создают массив аргументов. Ключи, построенные любым способом по одинаковым аргументам, равны
+ */
+public abstract class CompositeKey {
+    @Getter
+    private final Method method;
+    @Getter
+    private final Object state;
+    private final int hash;
+
+    private CompositeKey(Method method, Object state, int argsHash) {
+        this.method = method;
+        this.state = state;
+        this.hash = 31 * (31 * method.hashCode() + hashOf(state)) + argsHash;
+    }
+
+    public static CompositeKey of(Method method, Object state, Object[] args) {
+        if (args == null || args.length == 0) {
+            return new Key0(method, state);
+        }
+        switch (args.length) {
+            case 1:
+                return ofArg(method, state, args[0]);
+            case 2:
+                return new Key2(method, state, args[0], args[1]);
+            default:
+                return new KeyN(method, state, args);
+        }
+    }
+
+    public static CompositeKey of(Method method, Object state) {
+        return new Key0(method, state);
+    }
+
+    public static CompositeKey of(Method method, Object state, int arg) {
+        return new KeyInt(method, state, arg);
+    }
+
+    public static CompositeKey of(Method method, Object state, long arg) {
+        return new KeyLong(method, state, arg);
+    }
+
+    // упакованные int и long дают тот же ключ, что и примитивные варианты of()
+    public static CompositeKey ofArg(Method method, Object state, Object arg) {
+        if (arg instanceof Integer) {
+            return new KeyInt(method, state, (Integer) arg);
+        }
+        if (arg instanceof Long) {
+            return new KeyLong(method, state, (Long) arg);
+        }
+        return new Key1(method, state, arg);
+    }
+
+    public static CompositeKey ofArgs(Method method, Object state, Object arg1, Object arg2) {
+        return new Key2(method, state, arg1, arg2);
+    }
+
+    // Тот же ключ с другим, равным по содержимому, состоянием - например, с его копией для хранения в кэше
+    CompositeKey withState(Object state) {
+        return of(method, state, getArgs());
+    }
+
+    // Аргументы вызова в том виде, в котором их получил исходный метод
+    public abstract Object[] getArgs();
+
+    abstract boolean argsEquals(CompositeKey other);
+
+    @Override
+    public final int hashCode() {
+        return hash;
+    }
+
+    @Override
+    public final boolean equals(Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        if (!(obj instanceof CompositeKey)) {
+            return false;
+        }
+        CompositeKey other = (CompositeKey) obj;
+        return hash == other.hash
+                && getClass() == other.getClass()
+                && (method == other.method || method.equals(other.method))
+                && Objects.deepEquals(state, other.state)
+                && argsEquals(other);
+    }
+
+    @Override
+    public String toString() {
+        return method.getName() + Arrays.deepToString(getArgs()) + "@" + state;
+    }
+
+    // Строка "класс#имя(типы параметров)", одинаковая во всех JVM: по ней метод находится в снимке и удалённом уровне кэша
+    static String signatureOf(Method method) {
+        StringJoiner parameters = new StringJoiner(",", method.getDeclaringClass().getName() + "#" + method.getName() + "(", ")");
+        for (Class<?> parameterType : method.getParameterTypes()) {
+            parameters.add(parameterType.getName());
+        }
+        return parameters.toString();
+    }
+
+    static int hashOf(Object value) {
+        if (value == null) {
+            return 0;
+        }
+        if (value.getClass().isArray()) {
+            return Arrays.deepHashCode(new Object[]{value});
+        }
+        return value.hashCode();
+    }
+
+    private static final class Key0 extends CompositeKey {
+        private static final Object[] NO_ARGS = new Object[0];
+
+        Key0(Method method, Object state) {
+            super(method, state, 0);
+        }
+
+        @Override
+        public Object[] getArgs() {
+            return NO_ARGS;
+        }
+
+        @Override
+        boolean argsEquals(CompositeKey other) {
+            return true;
+        }
+    }
+
+    private static final class Key1 extends CompositeKey {
+        private final Object arg;
+
+        Key1(Method method, Object state, Object arg) {
+            super(method, state, hashOf(arg));
+            this.arg = arg;
+        }
+
+        @Override
+        public Object[] getArgs() {
+            return new Object[]{arg};
+        }
+
+        @Override
+        boolean argsEquals(CompositeKey other) {
+            return Objects.deepEquals(arg, ((Key1) other).arg);
+        }
+    }
+
+    private static final class KeyInt extends CompositeKey {
+        private final int arg;
+
+        KeyInt(Method method, Object state, int arg) {
+            super(method, state, Integer.hashCode(arg));
+            this.arg = arg;
+        }
+
+        @Override
+        public Object[] getArgs() {
+            return new Object[]{arg};
+        }
+
+        @Override
+        boolean argsEquals(CompositeKey other) {
+            return arg == ((KeyInt) other).arg;
+        }
+    }
+
+    private static final class KeyLong extends CompositeKey {
+        private final long arg;
+
+        KeyLong(Method method, Object state, long arg) {
+            super(method, state, Long.hashCode(arg));
+            this.arg = arg;
+        }
+
+        @Override
+        public Object[] getArgs() {
+            return new Object[]{arg};
+        }
+
+        @Override
+        boolean argsEquals(CompositeKey other) {
+            return arg == ((KeyLong) other).arg;
+        }
+    }
+
+    private static final class Key2 extends CompositeKey {
+        private final Object arg1;
+        private final Object arg2;
+
+        Key2(Method method, Object state, Object arg1, Object arg2) {
+            super(method, state, 31 * hashOf(arg1) + hashOf(arg2));
+            this.arg1 = arg1;
+            this.arg2 = arg2;
+        }
+
+        @Override
+        public Object[] getArgs() {
+            return new Object[]{arg1, arg2};
+        }
+
+        @Override
+        boolean argsEquals(CompositeKey other) {
+            Key2 key = (Key2) other;
+            return Objects.deepEquals(arg1, key.arg1) && Objects.deepEquals(arg2, key.arg2);
+        }
+    }
+
+    private static final class KeyN extends CompositeKey {
+        private final Object[] args;
+
+        KeyN(Method method, Object state, Object[] args) {
+            super(method, state, Arrays.deepHashCode(args));
+            // Proxy создаёт новый массив на каждый вызов, поэтому копия не нужна
+            this.args = args;
+        }
+
+        @Override
+        public Object[] getArgs() {
+            return args.clone();
+        }
+
+        @Override
+        boolean argsEquals(CompositeKey other) {
+            return Arrays.deepEquals(args, ((KeyN) other).args);
+        }
+    }
+}
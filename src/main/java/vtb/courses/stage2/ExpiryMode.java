@@ -0,0 +1,13 @@
+package vtb.courses.stage2;
+
+/** Способ удаления значений с истёкшим временем жизни
+ * <p>   BACKGROUND - хранилище регистрируется в общем потоке очистки {@link CacheCleaner}
+ * <p>   LAZY - потока очистки нет: устаревшее значение считается промахом при чтении,
+ *       а удаление истёкших значений выполняется попутно при записи в кэш и при чтении из него.
+ *       Подходит для короткоживущих процессов: обработчик в этом режиме не создаёт потоков и не удерживается ими,
+ *       пока не использует общие регионы @Cache(region) или второй уровень кэша
+ */
+public enum ExpiryMode {
+    BACKGROUND,
+    LAZY
+}
@@ -0,0 +1,130 @@
+package vtb.courses.stage2;
+
+import java.lang.reflect.Array;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.lang.reflect.RecordComponent;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+
+/** Класс FieldStateKeyExtractor строит состояние объекта по значениям полей, помеченных аннотацией <b>@CacheKey</b>
+ * <p>   Поля ищутся один раз при создании, по всей иерархии класса
+ * <p>   Для одного поля ключом служит само значение поля, для нескольких - массив значений,
+ *       который {@link CompositeKey} сравнивает поэлементно, в том числе вложенные массивы
+ * <p>   Значение поля попадает в ключ кэша, поэтому оно не должно меняться, пока ключ хранится в кэше.
+ *       Допускаются только поля неизменяемых типов: примитивы и их обёртки, String, перечисления, java.time,
+ *       BigInteger, BigDecimal, UUID и записи (record) из таких типов, поля остальных типов отклоняются при создании.
+ *       Массивы таких типов при поиске сравниваются с текущим содержимым поля, а в сохраняемый ключ попадает их копия
+ *       ({@link #copyKey(Object)}), так что попадание в кэш массив не копирует
+ */
+public class FieldStateKeyExtractor implements StateKeyExtractor {
+    private static final Set<Class<?>> IMMUTABLE_TYPES = Set.of(
+            Boolean.class, Character.class, Byte.class, Short.class, Integer.class, Long.class, Float.class, Double.class,
+            String.class, BigInteger.class, BigDecimal.class, UUID.class);
+
+    private final Field[] fields;
+    // поля-массивы: в сохраняемый ключ попадает их копия
+    private final boolean[] copied;
+
+    public FieldStateKeyExtractor(Class<?> clazz) {
+        List<Field> keyFields = new ArrayList<>();
+        for (Class<?> c = clazz; c != null && c != Object.class; c = c.getSuperclass()) {
+            for (Field field : c.getDeclaredFields()) {
+                if (field.isAnnotationPresent(CacheKey.class) && !Modifier.isStatic(field.getModifiers())) {
+                    if (!isImmutable(field.getType())) {
+                        throw new IllegalArgumentException("Поле @CacheKey " + c.getName() + "." + field.getName()
+                                + " имеет изменяемый тип " + field.getType().getName());
+                    }
+                    field.setAccessible(true);
+                    keyFields.add(field);
+                }
+            }
+        }
+        fields = keyFields.toArray(new Field[0]);
+        copied = new boolean[fields.length];
+        for (int i = 0; i < fields.length; i++) {
+            copied[i] = fields[i].getType().isArray();
+        }
+    }
+
+    private static boolean isImmutable(Class<?> type) {
+        if (type.isArray()) {
+            return isImmutable(type.getComponentType());
+        }
+        if (type.isPrimitive() || type.isEnum() || IMMUTABLE_TYPES.contains(type)) {
+            return true;
+        }
+        if (type.getPackageName().equals("java.time") && Modifier.isFinal(type.getModifiers())) {
+            return true;
+        }
+        if (type.isRecord()) {
+            for (RecordComponent component : type.getRecordComponents()) {
+                if (!isImmutable(component.getType())) {
+                    return false;
+                }
+            }
+            return true;
+        }
+        return false;
+    }
+
+    public boolean isEmpty() {
+        return fields.length == 0;
+    }
+
+    @Override
+    public Object extractKey(Object object) {
+        try {
+            if (fields.length == 1) {
+                return fields[0].get(object);
+            }
+            Object[] values = new Object[fields.length];
+            for (int i = 0; i < fields.length; i++) {
+                values[i] = fields[i].get(object);
+            }
+            return values;
+        } catch (IllegalAccessException e) {
+            throw new IllegalStateException("Не удалось прочитать поле состояния объекта", e);
+        }
+    }
+
+    // копируются только поля-массивы: изменение массива на месте испортило бы хэш сохранённого ключа
+    @Override
+    public Object copyKey(Object key) {
+        if (fields.length == 1) {
+            return copied[0] ? copyArray(key) : key;
+        }
+        Object[] values = (Object[]) key;
+        Object[] copy = null;
+        for (int i = 0; i < fields.length; i++) {
+            if (copied[i]) {
+                if (copy == null) {
+                    copy = values.clone();
+                }
+                copy[i] = copyArray(values[i]);
+            }
+        }
+        return copy == null ? key : copy;
+    }
+
+    private static Object copyArray(Object array) {
+        if (array == null) {
+            return null;
+        }
+        int length = Array.getLength(array);
+        Class<?> componentType = array.getClass().getComponentType();
+        Object copy = Array.newInstance(componentType, length);
+        if (componentType.isArray()) {
+            for (int i = 0; i < length; i++) {
+                Array.set(copy, i, copyArray(Array.get(array, i)));
+            }
+        } else {
+            System.arraycopy(array, 0, copy, 0, length);
+        }
+        return copy;
+    }
+}
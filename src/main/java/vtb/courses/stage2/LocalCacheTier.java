@@ -0,0 +1,78 @@
+package vtb.courses.stage2;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.BiConsumer;
+
+import static java.lang.System.nanoTime;
+
+/** Удалённый уровень кэша, размещённый в той же JVM
+ * <p>   Используется в тестах вместо сетевого хранилища: несколько обработчиков, подключённых к одному экземпляру,
+ *       ведут себя как узлы, разделяющие общий второй уровень. Сообщения invalidate() доставляются подписчикам синхронно
+ */
+public class LocalCacheTier implements CacheTier {
+    private final Map<TierKey, Entry> entries = new ConcurrentHashMap<>();
+    private final Collection<BiConsumer<String, byte[]>> listeners = new CopyOnWriteArrayList<>();
+
+    @Override
+    public CompletableFuture<Map<TierKey, byte[]>> getAll(Collection<TierKey> keys) {
+        long now = nanoTime();
+        Map<TierKey, byte[]> found = new HashMap<>();
+        for (TierKey key : keys) {
+            Entry entry = entries.get(key);
+            if (entry != null) {
+                if (entry.ttl != 0 && now - entry.written > entry.ttl) {
+                    entries.remove(key, entry);
+                } else {
+                    found.put(key, entry.value);
+                }
+            }
+        }
+        return CompletableFuture.completedFuture(found);
+    }
+
+    @Override
+    public CompletableFuture<Void> putAll(Map<TierKey, byte[]> values, long ttlMillis) {
+        long written = nanoTime();
+        values.forEach((key, value) -> entries.put(key, new Entry(value, written, 1000000L * ttlMillis)));
+        return CompletableFuture.completedFuture(null);
+    }
+
+    @Override
+    public void invalidate(String signature, byte[] state) {
+        entries.keySet().removeIf(key -> key.matches(signature, state));
+        for (BiConsumer<String, byte[]> listener : listeners) {
+            listener.accept(signature, state);
+        }
+    }
+
+    @Override
+    public void subscribe(BiConsumer<String, byte[]> listener) {
+        listeners.add(listener);
+    }
+
+    @Override
+    public void unsubscribe(BiConsumer<String, byte[]> listener) {
+        listeners.remove(listener);
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    private static class Entry {
+        private final byte[] value;
+        private final long written;
+        private final long ttl;
+
+        private Entry(byte[] value, long written, long ttl) {
+            this.value = value;
+            this.written = written;
+            this.ttl = ttl;
+        }
+    }
+}
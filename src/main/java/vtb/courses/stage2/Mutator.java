@@ -5,7 +5,14 @@ import java.lang.annotation.Retention;
 import java.lang.annotation.RetentionPolicy;
 import java.lang.annotation.Target;
 
+/** Метод, помеченный аннотацией <b>@Mutator</b>, изменяет состояние объекта,
+ *  после его вызова кэшируемые методы вычисляются заново
+ * <p>   invalidates - имена кэшируемых методов или групп <b>@Cache(group)</b>, на которые влияет изменение.
+ *       Остальные методы продолжают брать значения из кэша. Пустой список - изменение влияет на все кэшируемые методы
+ *       Имя, которому не соответствует ни один кэшируемый метод или группа, отклоняется при создании прокси
+ */
 @Target(ElementType.METHOD)
 @Retention(RetentionPolicy.RUNTIME)
 public @interface Mutator {
+    String[] invalidates() default {};
 }
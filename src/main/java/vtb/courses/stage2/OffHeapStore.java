@@ -0,0 +1,232 @@
+package vtb.courses.stage2;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.locks.StampedLock;
+
+import vtb.courses.stage2.CacheStorage.TimedValue;
+
+/** Класс OffHeapStore - хранилище сериализованных значений сегмента вне кучи
+ * <p>   Память выделяется блоками (direct ByteBuffer) фиксированного размера, внутри блока значения
+ *       размещаются подряд сдвигом указателя. Отдельные значения не освобождаются: блок целиком становится свободным,
+ *       когда в нём не остаётся живых значений, и переиспользуется без обращения к сборщику мусора
+ * <p>   Расположение значений хранится в примитивных массивах по номеру ячейки, так что на значение в куче
+ *       приходится только его TimedValue с номером ячейки, без отдельного объекта-ссылки
+ * <p>   Когда все блоки заняты, целиком освобождается самый старый блок: его значения вытесняются из сегмента
+ * <p>   Значения каждого блока связаны в список, поэтому при освобождении блока просматриваются только его ячейки
+ * <p>   Запись и освобождение выполняются под блокировкой сегмента-владельца. Чтение её не берёт:
+ *       оно оптимистичное ({@link StampedLock}) и повторяется под блокировкой чтения, только если
+ *       одновременно с ним хранилище изменялось
+ */
+class OffHeapStore {
+    private static final int MIN_CHUNK = 64 * 1024;
+    private static final int MAX_CHUNK = 64 * 1024 * 1024;
+
+    private final CacheSegment segment;
+    private final int chunkSize;
+    // изменения под блокировкой сегмента дополнительно берут запись, чтобы оптимистичное чтение могло их заметить
+    private final StampedLock guard = new StampedLock();
+
+    // блоки памяти и их состояние: указатель на свободное место, объём живых значений, порядковый номер заполнения
+    private final ByteBuffer[] chunks;
+    private final int[] chunkTop;
+    private final int[] chunkLive;
+    private final long[] chunkSequence;
+    private final int[] chunkFirstSlot;
+    private final int[] freeChunks;
+    private int freeChunkCount;
+    private int allocatedChunks;
+    private int current = -1;
+    private long sequence;
+
+    // ячейки значений: блок, смещение, длина, владелец и соседи в списке ячеек блока
+    private int[] slotChunk = new int[64];
+    private int[] slotOffset = new int[64];
+    private int[] slotLength = new int[64];
+    private TimedValue[] slotOwner = new TimedValue[64];
+    private int[] slotPrev = new int[64];
+    private int[] slotNext = new int[64];
+    private int[] freeSlots = new int[64];
+    private int freeSlotCount;
+    private int slotCount;
+    private long usedBytes;
+
+    OffHeapStore(CacheSegment segment, long capacity) {
+        this.segment = segment;
+        this.chunkSize = (int) Long.min(MAX_CHUNK, Long.max(MIN_CHUNK, capacity / 8));
+        int maxChunks = (int) Long.max(1, capacity / chunkSize);
+        this.chunks = new ByteBuffer[maxChunks];
+        this.chunkTop = new int[maxChunks];
+        this.chunkLive = new int[maxChunks];
+        this.chunkSequence = new long[maxChunks];
+        this.chunkFirstSlot = new int[maxChunks];
+        Arrays.fill(chunkFirstSlot, -1);
+        this.freeChunks = new int[maxChunks];
+    }
+
+    int chunkSize() {
+        return chunkSize;
+    }
+
+    long usedBytes() {
+        return usedBytes;
+    }
+
+    long capacity() {
+        return (long) chunks.length * chunkSize;
+    }
+
+    /** Копирует значение в память вне кучи
+     * @return номер ячейки или -1, если значение больше блока и должно остаться в куче
+     */
+    int store(byte[] bytes, TimedValue owner) {
+        if (bytes.length > chunkSize) {
+            return -1;
+        }
+        // смена блока может вытеснить значения старого, а каждое освобождение само берёт блокировку записи
+        if (current < 0 || chunkTop[current] + bytes.length > chunkSize) {
+            nextChunk();
+        }
+        long stamp = guard.writeLock();
+        try {
+            int slot = newSlot();
+            int offset = chunkTop[current];
+            chunks[current].put(offset, bytes);
+            chunkTop[current] += bytes.length;
+            chunkLive[current] += bytes.length;
+            slotChunk[slot] = current;
+            slotOffset[slot] = offset;
+            slotLength[slot] = bytes.length;
+            slotOwner[slot] = owner;
+            slotPrev[slot] = -1;
+            slotNext[slot] = chunkFirstSlot[current];
+            if (slotNext[slot] >= 0) {
+                slotPrev[slotNext[slot]] = slot;
+            }
+            chunkFirstSlot[current] = slot;
+            usedBytes += bytes.length;
+            return slot;
+        } finally {
+            guard.unlockWrite(stamp);
+        }
+    }
+
+    /** Копирует значение обратно в кучу
+     * @return байты значения или null, если ячейка уже освобождена
+     */
+    byte[] read(int slot, TimedValue owner) {
+        if (slot < 0) {
+            return null;
+        }
+        long stamp = guard.tryOptimisticRead();
+        if (stamp != 0) {
+            try {
+                byte[] bytes = readSlot(slot, owner);
+                if (guard.validate(stamp)) {
+                    return bytes;
+                }
+            } catch (RuntimeException e) {
+                // во время чтения хранилище изменялось и прочитанные поля не согласованы - читаем под блокировкой
+            }
+        }
+        stamp = guard.readLock();
+        try {
+            return readSlot(slot, owner);
+        } finally {
+            guard.unlockRead(stamp);
+        }
+    }
+
+    private byte[] readSlot(int slot, TimedValue owner) {
+        TimedValue[] owners = slotOwner;
+        if (slot >= owners.length || owners[slot] != owner) {
+            return null;
+        }
+        byte[] bytes = new byte[slotLength[slot]];
+        chunks[slotChunk[slot]].get(slotOffset[slot], bytes);
+        return bytes;
+    }
+
+    // ячейка может быть уже освобождена и отдана другому значению, тогда освобождать нечего
+    void free(int slot, TimedValue owner) {
+        if (slotOwner[slot] != owner) {
+            return;
+        }
+        long stamp = guard.writeLock();
+        try {
+            int chunk = slotChunk[slot];
+            chunkLive[chunk] -= slotLength[slot];
+            usedBytes -= slotLength[slot];
+            slotOwner[slot] = null;
+            if (slotPrev[slot] >= 0) {
+                slotNext[slotPrev[slot]] = slotNext[slot];
+            } else {
+                chunkFirstSlot[chunk] = slotNext[slot];
+            }
+            if (slotNext[slot] >= 0) {
+                slotPrev[slotNext[slot]] = slotPrev[slot];
+            }
+            if (freeSlotCount == freeSlots.length) {
+                freeSlots = Arrays.copyOf(freeSlots, freeSlotCount * 2);
+            }
+            freeSlots[freeSlotCount++] = slot;
+            // живых значений в блоке не осталось - весь блок снова свободен
+            if (chunkLive[chunk] == 0) {
+                chunkTop[chunk] = 0;
+                if (chunk != current) {
+                    freeChunks[freeChunkCount++] = chunk;
+                }
+            }
+        } finally {
+            guard.unlockWrite(stamp);
+        }
+    }
+
+    private void nextChunk() {
+        if (freeChunkCount == 0 && allocatedChunks < chunks.length) {
+            chunks[allocatedChunks] = ByteBuffer.allocateDirect(chunkSize);
+            freeChunks[freeChunkCount++] = allocatedChunks++;
+        }
+        if (freeChunkCount == 0) {
+            reclaimOldestChunk();
+        }
+        if (freeChunkCount > 0) {
+            current = freeChunks[--freeChunkCount];
+        }
+        // единственный блок освобождается на месте и остаётся текущим
+        chunkSequence[current] = ++sequence;
+    }
+
+    // вытесняем все значения самого старого блока, после чего он попадает в список свободных.
+    // Вытеснение освобождает ячейку и убирает её из списка блока, поэтому следующая ячейка запоминается заранее
+    private void reclaimOldestChunk() {
+        int oldest = -1;
+        for (int chunk = 0; chunk < allocatedChunks; chunk++) {
+            if (chunk != current && (oldest < 0 || chunkSequence[chunk] < chunkSequence[oldest])) {
+                oldest = chunk;
+            }
+        }
+        int victim = oldest >= 0 ? oldest : current;
+        for (int slot = chunkFirstSlot[victim]; slot >= 0; ) {
+            int next = slotNext[slot];
+            segment.evictOffHeap(slotOwner[slot]);
+            slot = next;
+        }
+    }
+
+    private int newSlot() {
+        if (freeSlotCount > 0) {
+            return freeSlots[--freeSlotCount];
+        }
+        if (slotCount == slotOwner.length) {
+            int length = slotCount * 2;
+            slotChunk = Arrays.copyOf(slotChunk, length);
+            slotOffset = Arrays.copyOf(slotOffset, length);
+            slotLength = Arrays.copyOf(slotLength, length);
+            slotOwner = Arrays.copyOf(slotOwner, length);
+            slotPrev = Arrays.copyOf(slotPrev, length);
+            slotNext = Arrays.copyOf(slotNext, length);
+        }
+        return slotCount++;
+    }
+}
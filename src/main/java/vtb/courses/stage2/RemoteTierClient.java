@@ -0,0 +1,231 @@
+package vtb.courses.stage2;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.BiConsumer;
+
+/** Класс RemoteTierClient - связь хранилища {@link CacheStorage} с удалённым уровнем {@link CacheTier}
+ * <p>   Запросы чтения, записи и инвалидации из всех потоков складываются в очередь и отправляются пакетами до MAX_BATCH штук.
+ *       Отправкой занимается общий для всех хранилищ daemon-поток, который не ждёт ответа на пакет перед отправкой
+ *       следующего. Поток, которому нужно значение, ждёт только свой запрос и не дольше timeout,
+ *       запись выполняется в фоне и вызывающий поток не задерживает
+ * <p>   Инвалидация проходит через ту же очередь: записи, поставленные в очередь до неё, сначала отправляются
+ *       и подтверждаются, так что запоздавшая запись не может вернуть во второй уровень уже сброшенное значение
+ * <p>   Ключи и значения сериализуются {@link ValueSerializer}: значения, которые сериализовать нельзя, в удалённый уровень не попадают
+ */
+class RemoteTierClient {
+    private static final int MAX_BATCH = 64;
+    private static final Executor SENDER = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "cache-remote-tier");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final CacheTier tier;
+    private final ValueSerializer serializer;
+    private final long timeout;
+    private final Map<Method, String> signatures = new ConcurrentHashMap<>();
+    private final Queue<Request> requests = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean sending = new AtomicBoolean();
+
+    RemoteTierClient(CacheTier tier, ValueSerializer serializer, long timeout) {
+        this.tier = tier;
+        this.serializer = serializer;
+        this.timeout = timeout;
+    }
+
+    CacheTier getTier() {
+        return tier;
+    }
+
+    String signature(Method method) {
+        return signatures.computeIfAbsent(method, CompositeKey::signatureOf);
+    }
+
+    TierKey key(Method method, CompositeKey key) {
+        byte[] state = serializeState(key.getState());
+        byte[] args = serializer.serialize(key.getArgs());
+        return state == null || args == null ? null : new TierKey(signature(method), state, args);
+    }
+
+    Object deserialize(byte[] bytes) {
+        return serializer.deserialize(bytes);
+    }
+
+    // Состояние сериализуется в обёртке из одного элемента: так и отсутствующее (null) состояние кодируется явно,
+    // а не значением, которое может оказаться настоящим состоянием другого объекта
+    private byte[] serializeState(Object state) {
+        return serializer.serialize(new Object[]{state});
+    }
+
+    // Состояние объекта из сообщения инвалидации, сериализованное serializeState()
+    Object deserializeState(byte[] bytes) {
+        return ((Object[]) serializer.deserialize(bytes))[0];
+    }
+
+    /** Запрашивает значение и ждёт ответа не дольше timeout
+     * @return сериализованное значение или null, если его нет или удалённый уровень не ответил вовремя
+     */
+    byte[] get(TierKey key) {
+        Request request = new Request(Kind.GET, key, null, null, null, 0);
+        submit(request);
+        try {
+            return request.result.get(timeout, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException | ExecutionException e) {
+            return null;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+    }
+
+    // ключ и значение сериализуются в потоке отправки, а не в вызывающем
+    void put(Method method, CompositeKey key, Object value, long ttl) {
+        submit(new Request(Kind.PUT, null, method, key, value, ttl));
+    }
+
+    // выполняется после всех записей, поставленных в очередь раньше
+    void invalidate(Method method, Object state) {
+        submit(new Request(Kind.INVALIDATE, null, method, null, state, 0));
+    }
+
+    void subscribe(BiConsumer<String, byte[]> listener) {
+        tier.subscribe(listener);
+    }
+
+    void unsubscribe(BiConsumer<String, byte[]> listener) {
+        tier.unsubscribe(listener);
+    }
+
+    private void submit(Request request) {
+        requests.add(request);
+        if (sending.compareAndSet(false, true)) {
+            SENDER.execute(this::send);
+        }
+    }
+
+    // отправляет очередь пакетами, пока она не опустеет
+    private void send() {
+        boolean drained = false;
+        try {
+            while (!drained) {
+                List<Request> batch = new ArrayList<>();
+                Request request;
+                while (batch.size() < MAX_BATCH && (request = requests.poll()) != null) {
+                    batch.add(request);
+                }
+                if (batch.isEmpty()) {
+                    sending.set(false);
+                    // запрос мог появиться после опустошения очереди, но до сброса признака
+                    drained = requests.isEmpty() || !sending.compareAndSet(false, true);
+                    continue;
+                }
+                try {
+                    sendBatch(batch);
+                } catch (RuntimeException | Error e) {
+                    // удалённый уровень недоступен - ожидающие получат промах, записи пропадут
+                    for (Request failed : batch) {
+                        failed.result.complete(null);
+                    }
+                    if (e instanceof Error) {
+                        throw e;
+                    }
+                }
+            }
+        } finally {
+            // поток отправки завершается с ошибкой: следующий submit() или оставшаяся очередь запустят отправку заново
+            if (!drained) {
+                sending.set(false);
+                if (!requests.isEmpty() && sending.compareAndSet(false, true)) {
+                    SENDER.execute(this::send);
+                }
+            }
+        }
+    }
+
+    private void sendBatch(List<Request> batch) {
+        Map<TierKey, List<Request>> gets = new HashMap<>();
+        Map<Long, Map<TierKey, byte[]>> puts = new HashMap<>();
+        for (Request request : batch) {
+            if (request.kind == Kind.GET) {
+                gets.computeIfAbsent(request.tierKey, key -> new ArrayList<>()).add(request);
+            } else if (request.kind == Kind.PUT) {
+                TierKey tierKey = key(request.method, request.key);
+                byte[] value = request.value == null ? null : serializer.serialize(request.value);
+                if (tierKey != null && value != null) {
+                    puts.computeIfAbsent(request.ttl, ttl -> new HashMap<>()).put(tierKey, value);
+                }
+            } else {
+                // записи, накопленные до инвалидации, должны дойти до второго уровня раньше неё
+                awaitWritten(flush(puts));
+                byte[] state = serializeState(request.value);
+                if (state != null) {
+                    tier.invalidate(signature(request.method), state);
+                }
+            }
+        }
+        flush(puts);
+        if (!gets.isEmpty()) {
+            tier.getAll(gets.keySet()).whenComplete((found, error) -> gets.forEach((key, waiting) -> {
+                byte[] value = found == null ? null : found.get(key);
+                for (Request request : waiting) {
+                    request.result.complete(value);
+                }
+            }));
+        }
+    }
+
+    private CompletableFuture<Void> flush(Map<Long, Map<TierKey, byte[]>> puts) {
+        List<CompletableFuture<Void>> written = new ArrayList<>(puts.size());
+        puts.forEach((ttl, entries) -> written.add(tier.putAll(entries, ttl)));
+        puts.clear();
+        return CompletableFuture.allOf(written.toArray(new CompletableFuture<?>[0]));
+    }
+
+    // ждём подтверждения записи не дольше timeout: недоступный второй уровень не должен останавливать отправку
+    private void awaitWritten(CompletableFuture<Void> written) {
+        try {
+            written.get(timeout, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException | ExecutionException e) {
+            // запись не подтверждена - инвалидация всё равно отправляется
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private enum Kind { GET, PUT, INVALIDATE }
+
+    // запрос чтения задан ключом tierKey, запрос записи - методом, ключом и значением,
+    // запрос инвалидации - методом и состоянием объекта в value
+    private static class Request {
+        private final Kind kind;
+        private final TierKey tierKey;
+        private final Method method;
+        private final CompositeKey key;
+        private final Object value;
+        private final long ttl;
+        private final CompletableFuture<byte[]> result = new CompletableFuture<>();
+
+        private Request(Kind kind, TierKey tierKey, Method method, CompositeKey key, Object value, long ttl) {
+            this.kind = kind;
+            this.tierKey = tierKey;
+            this.method = method;
+            this.key = key;
+            this.value = value;
+            this.ttl = ttl;
+        }
+    }
+}
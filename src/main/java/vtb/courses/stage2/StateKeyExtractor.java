@@ -0,0 +1,32 @@
+package vtb.courses.stage2;
+
+/** Стратегия получения состояния объекта, которое входит в ключ кэша {@link CompositeKey}
+ * <p>   Возвращаемое значение должно корректно реализовывать equals() и hashCode():
+ *       равные состояния объекта дают равные ключи
+ */
+@FunctionalInterface
+public interface StateKeyExtractor {
+    // Исторически состояние объекта определялось его строковым представлением
+    StateKeyExtractor TO_STRING = Object::toString;
+
+    Object extractKey(Object object);
+
+    /** Независимая копия состояния, которая сохраняется в кэше вместе со значением.
+     *  extractKey() может возвращать изменяемые части объекта как есть, чтобы попадание в кэш ничего не копировало,
+     *  а копия создаётся только при промахе. По умолчанию состояние неизменяемо и копия не нужна
+     */
+    default Object copyKey(Object key) {
+        return key;
+    }
+
+    /** Выбирает стратегию по умолчанию для класса: для {@link StateVersioned} состояние - его версия,
+     *  если в классе есть поля с аннотацией <b>@CacheKey</b>, состояние строится по ним, иначе по toString()
+     */
+    static StateKeyExtractor forClass(Class<?> clazz) {
+        if (StateVersioned.class.isAssignableFrom(clazz)) {
+            return new VersionStateKeyExtractor();
+        }
+        FieldStateKeyExtractor extractor = new FieldStateKeyExtractor(clazz);
+        return extractor.isEmpty() ? TO_STRING : extractor;
+    }
+}
@@ -0,0 +1,23 @@
+package vtb.courses.stage2;
+
+/** Объект, который сам сообщает версию своего состояния. Для таких объектов ключ кэша строится по версии
+ *  ({@link VersionStateKeyExtractor}), без вызова toString() и без чтения полей <b>@CacheKey</b>
+ * <p>   Версия должна меняться при каждом изменении состояния, влияющем на кэшируемые методы,
+ *       а равные версии - означать равные состояния. Подходит счётчик изменений.
+ *       Хэш состояния (hashCode(), Arrays.hashCode() и т.п.) версией быть не может: у разных состояний он может совпасть,
+ *       и прокси вернёт значение, вычисленное для другого состояния
+ * <p>   Счётчик не повторяется, поэтому возврат объекта в прежнее состояние даёт новую версию и значения вычисляются заново.
+ *       В общем регионе <b>@Cache(region)</b>, снимке и втором уровне кэша версии разных объектов сравниваются между собой:
+ *       для них версия должна однозначно определять содержимое - быть идентификатором неизменяемого снимка состояния
+ *       (например, номером версии в общем хранилище, которое выдаёт один номер одинаковому содержимому)
+ *       или криптографическим дайджестом содержимого. Такой объект сообщает об этом через <b>versionIdentifiesContent()</b>,
+ *       иначе прокси с ними не создаётся
+ */
+public interface StateVersioned {
+    long stateVersion();
+
+    // true - версия однозначно определяет содержимое состояния (не хэш!) и её можно сравнивать с версиями других объектов
+    default boolean versionIdentifiesContent() {
+        return false;
+    }
+}
@@ -0,0 +1,63 @@
+package vtb.courses.stage2;
+
+import lombok.Getter;
+
+import java.util.Arrays;
+import java.util.Objects;
+
+/** Ключ значения в удалённом уровне кэша {@link CacheTier}: сигнатура метода, сериализованные состояние объекта и аргументы
+ * <p>   Состояние хранится отдельно от аргументов, чтобы сообщение об изменении объекта могло затронуть
+ *       все значения метода для этого состояния
+ */
+public final class TierKey {
+    @Getter
+    private final String signature;
+    private final byte[] state;
+    private final byte[] args;
+    private final int hash;
+
+    public TierKey(String signature, byte[] state, byte[] args) {
+        this.signature = signature;
+        this.state = state;
+        this.args = args;
+        this.hash = 31 * (31 * signature.hashCode() + Arrays.hashCode(state)) + Arrays.hashCode(args);
+    }
+
+    public byte[] getState() {
+        return state.clone();
+    }
+
+    public byte[] getArgs() {
+        return args.clone();
+    }
+
+    // значение относится к методу signature объекта в состоянии state
+    public boolean matches(String signature, byte[] state) {
+        return this.signature.equals(signature) && Arrays.equals(this.state, state);
+    }
+
+    @Override
+    public int hashCode() {
+        return hash;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        if (!(obj instanceof TierKey)) {
+            return false;
+        }
+        TierKey other = (TierKey) obj;
+        return hash == other.hash
+                && Objects.equals(signature, other.signature)
+                && Arrays.equals(state, other.state)
+                && Arrays.equals(args, other.args);
+    }
+
+    @Override
+    public String toString() {
+        return signature + "@" + Arrays.hashCode(state) + Arrays.hashCode(args);
+    }
+}
@@ -0,0 +1,157 @@
+package vtb.courses.stage2;
+
+import vtb.courses.stage2.CacheStorage.TimedValue;
+
+import static java.lang.System.nanoTime;
+
+/** Класс TimerWheel - иерархическое колесо таймеров для удаления значений с истёкшим временем жизни
+ * <p>   Значения раскладываются по корзинам в зависимости от момента истечения: чем дальше момент,
+ *       тем более грубое колесо. Первое колесо делит время на интервалы ~1 мс, каждое следующее - в 64 раза крупнее,
+ *       последнее колесо из одной корзины хранит значения, живущие дольше ~5 часов
+ * <p>   advance() обходит только корзины, время которых прошло, поэтому очистка стоит O(истекающих значений),
+ *       а не O(всех значений). Так как время жизни отсчитывается от последнего обращения, значение из сработавшей корзины
+ *       может оказаться ещё живым - тогда оно перекладывается в корзину, соответствующую новому моменту истечения
+ * <p>   Корзины создаются при первом обращении: колесо есть у каждого кэшируемого метода каждого обработчика,
+ *       а большинство методов либо вовсе не ограничивают время жизни, либо используют лишь несколько корзин
+ * <p>   Все операции, кроме isDue(), выполняются под блокировкой сегмента-владельца
+ */
+class TimerWheel {
+    private static final int[] BUCKETS = {64, 64, 64, 64, 1};
+    private static final long[] SPANS = {1L << 20, 1L << 26, 1L << 32, 1L << 38, 1L << 44, 1L << 44};
+    private static final int[] SHIFT = {20, 26, 32, 38, 44};
+
+    private final CacheSegment segment;
+    private final TimedValue[][] wheel;
+    // время отсчитывается от создания колеса, чтобы не зависеть от знака nanoTime()
+    private final long origin;
+    // читается без блокировки в isDue(), поэтому volatile
+    private volatile long nanos;
+
+    TimerWheel(CacheSegment segment) {
+        this.segment = segment;
+        this.origin = nanoTime();
+        this.wheel = new TimedValue[BUCKETS.length][];
+    }
+
+    void schedule(TimedValue timedValue) {
+        TimedValue sentinel = findBucket(deadline(timedValue));
+        timedValue.wheelNext = sentinel;
+        timedValue.wheelPrev = sentinel.wheelPrev;
+        sentinel.wheelPrev.wheelNext = timedValue;
+        sentinel.wheelPrev = timedValue;
+    }
+
+    void deschedule(TimedValue timedValue) {
+        if (timedValue.wheelNext != null) {
+            timedValue.wheelNext.wheelPrev = timedValue.wheelPrev;
+            timedValue.wheelPrev.wheelNext = timedValue.wheelNext;
+            timedValue.wheelNext = null;
+            timedValue.wheelPrev = null;
+        }
+    }
+
+    // С прошлого продвижения прошёл хотя бы один такт первого колеса - продвижение может что-то удалить
+    boolean isDue(long now) {
+        return (now - origin) >>> SHIFT[0] != nanos >>> SHIFT[0];
+    }
+
+    /** Продвигает колесо до момента now и удаляет значения, время жизни которых истекло
+     * @return количество просмотренных значений
+     */
+    long advance(long now) {
+        long previousTimeNanos = nanos;
+        long currentTimeNanos = now - origin;
+        nanos = currentTimeNanos;
+        long scanned = 0;
+        for (int i = 0; i < SHIFT.length; i++) {
+            long previousTicks = previousTimeNanos >>> SHIFT[i];
+            long currentTicks = currentTimeNanos >>> SHIFT[i];
+            if (currentTicks - previousTicks <= 0L) {
+                break;
+            }
+            scanned += expire(i, previousTicks, currentTicks - previousTicks);
+        }
+        return scanned;
+    }
+
+    private long expire(int index, long previousTicks, long delta) {
+        TimedValue[] timerWheel = wheel[index];
+        if (timerWheel == null) {
+            return 0;
+        }
+        int mask = timerWheel.length - 1;
+        int steps = (int) Long.min(1 + delta, timerWheel.length);
+        int start = (int) (previousTicks & mask);
+        int end = start + steps;
+        long scanned = 0;
+        for (int i = start; i < end; i++) {
+            TimedValue sentinel = timerWheel[i & mask];
+            if (sentinel == null) {
+                continue;
+            }
+            TimedValue timedValue = sentinel.wheelNext;
+            // отцепляем содержимое корзины целиком: перекладываемые значения могут попасть в неё же
+            sentinel.wheelPrev = sentinel;
+            sentinel.wheelNext = sentinel;
+            while (timedValue != sentinel) {
+                TimedValue next = timedValue.wheelNext;
+                timedValue.wheelPrev = null;
+                timedValue.wheelNext = null;
+                if (deadline(timedValue) - nanos <= 0L) {
+                    segment.expire(timedValue);
+                } else {
+                    schedule(timedValue);
+                }
+                scanned++;
+                timedValue = next;
+            }
+        }
+        return scanned;
+    }
+
+    private long deadline(TimedValue timedValue) {
+        return timedValue.getTime() - origin + 1000000L * timedValue.getTtl();
+    }
+
+    private TimedValue findBucket(long time) {
+        long duration = time - nanos;
+        int length = wheel.length - 1;
+        for (int i = 0; i < length; i++) {
+            if (duration < SPANS[i + 1]) {
+                long ticks = time >>> SHIFT[i];
+                return bucket(i, (int) (ticks & (BUCKETS[i] - 1)));
+            }
+        }
+        return bucket(length, 0);
+    }
+
+    private TimedValue bucket(int level, int index) {
+        TimedValue[] timerWheel = wheel[level];
+        if (timerWheel == null) {
+            timerWheel = wheel[level] = new TimedValue[BUCKETS[level]];
+        }
+        TimedValue sentinel = timerWheel[index];
+        if (sentinel == null) {
+            sentinel = new TimedValue(null, 0);
+            sentinel.wheelPrev = sentinel;
+            sentinel.wheelNext = sentinel;
+            timerWheel[index] = sentinel;
+        }
+        return sentinel;
+    }
+
+    // Количество созданных корзин
+    int buckets() {
+        int buckets = 0;
+        for (TimedValue[] timerWheel : wheel) {
+            if (timerWheel != null) {
+                for (TimedValue sentinel : timerWheel) {
+                    if (sentinel != null) {
+                        buckets++;
+                    }
+                }
+            }
+        }
+        return buckets;
+    }
+}
@@ -0,0 +1,84 @@
+package vtb.courses.stage2;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.lang.reflect.Array;
+import java.util.Set;
+
+/** Сериализация значений, которые хранятся вне кучи. Используется вместе с <b>@Cache(offHeapThreshold = ...)</b>
+ * <p>   Реализация должна иметь конструктор без параметров.
+ *       serialize() возвращает null, если значение не может быть сериализовано - тогда оно остаётся в куче
+ * <p>   estimateSize() позволяет не сериализовать значения, которые заведомо меньше порога offHeapThreshold
+ */
+public interface ValueSerializer {
+    byte[] serialize(Object value);
+
+    Object deserialize(byte[] bytes);
+
+    /** Оценка размера сериализованного значения сверху, без сериализации
+     * @return размер в байтах, не меньше фактического, или -1, если оценить его нельзя
+     */
+    default long estimateSize(Object value) {
+        return -1;
+    }
+
+    // Сериализация по умолчанию: стандартная сериализация Java для значений, реализующих Serializable
+    class Java implements ValueSerializer {
+        private static final Set<Class<?>> BOXED = Set.of(
+                Boolean.class, Character.class, Byte.class, Short.class, Integer.class, Long.class, Float.class, Double.class);
+
+        @Override
+        public byte[] serialize(Object value) {
+            if (!(value instanceof Serializable)) {
+                return null;
+            }
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+                out.writeObject(value);
+            } catch (IOException e) {
+                return null;
+            }
+            return bytes.toByteArray();
+        }
+
+        // заголовок потока и описание класса для обёрток и массивов примитивов занимают меньше 128 и 64 байт,
+        // строка записывается в модифицированной UTF-8 - не больше 3 байт на символ
+        @Override
+        public long estimateSize(Object value) {
+            if (BOXED.contains(value.getClass())) {
+                return 128;
+            }
+            if (value instanceof String string) {
+                return 16 + 3L * string.length();
+            }
+            Class<?> type = value.getClass().getComponentType();
+            if (type != null && type.isPrimitive()) {
+                return 64 + (long) Array.getLength(value) * primitiveSize(type);
+            }
+            return -1;
+        }
+
+        private static int primitiveSize(Class<?> type) {
+            if (type == long.class || type == double.class) {
+                return 8;
+            }
+            if (type == int.class || type == float.class) {
+                return 4;
+            }
+            return type == short.class || type == char.class ? 2 : 1;
+        }
+
+        @Override
+        public Object deserialize(byte[] bytes) {
+            try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes))) {
+                return in.readObject();
+            } catch (IOException | ClassNotFoundException e) {
+                throw new IllegalStateException("Не удалось восстановить значение из памяти вне кучи", e);
+            }
+        }
+    }
+}
@@ -0,0 +1,20 @@
+package vtb.courses.stage2;
+
+/** Класс VersionStateKeyExtractor строит состояние объекта {@link StateVersioned} по его версии
+ * <p>   Сравнение состояний сводится к сравнению двух long. Упакованная версия запоминается,
+ *       поэтому пока версия не меняется, вызов не создаёт ни одного объекта
+ */
+public class VersionStateKeyExtractor implements StateKeyExtractor {
+    private volatile Long lastVersion = 0L;
+
+    @Override
+    public Object extractKey(Object object) {
+        long version = ((StateVersioned) object).stateVersion();
+        Long last = lastVersion;
+        if (last != version) {
+            last = version;
+            lastVersion = last;
+        }
+        return last;
+    }
+}
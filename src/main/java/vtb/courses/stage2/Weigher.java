@@ -0,0 +1,17 @@
+package vtb.courses.stage2;
+
+/** Вес значения в кэше. Используется вместе с ограничением <b>@Cache(maxWeight = ...)</b>
+ * <p>   Реализация должна иметь конструктор без параметров и возвращать неотрицательный вес
+ */
+@FunctionalInterface
+public interface Weigher {
+    long weigh(CompositeKey key, Object value);
+
+    // Вес по умолчанию: каждое значение весит 1, т.е. ограничение по весу совпадает с ограничением по количеству
+    class Unit implements Weigher {
+        @Override
+        public long weigh(CompositeKey key, Object value) {
+            return 1;
+        }
+    }
+}
@@ -4,8 +4,21 @@ import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.DisplayName;
 import org.junit.jupiter.api.Test;
 
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
 import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
 
 public class CachableTest {
 
@@ -184,4 +197,618 @@ public class CachableTest {
         }
         catch (Exception e){}
     }
+
+    public interface Multiplier {
+        long multiply(int multiplier);
+    }
+
+    public static class MultiplierClass implements Multiplier {
+        @CacheKey
+        public int sourceData;
+        public int callCount;
+
+        @Override
+        @Cache(1000)
+        public long multiply(int multiplier) {
+            callCount++;
+            return (long) sourceData * multiplier;
+        }
+
+        @Override
+        public String toString() {
+            throw new UnsupportedOperationException("Состояние объекта должно браться из полей @CacheKey");
+        }
+    }
+
+    @Test
+    @DisplayName("Тестирование ключа кэша с учётом аргументов и полей @CacheKey")
+    public void test3() {
+        System.out.println("Создаём прокси для объекта, состояние которого задаётся полем @CacheKey");
+        MultiplierClass multiplierObject = new MultiplierClass();
+        Multiplier proxy = new CacheInvocationHandler<Multiplier>().cache(multiplierObject);
+        multiplierObject.sourceData = 10;
+
+        System.out.println("Вызовы с разными аргументами должны давать разные значения");
+        Assertions.assertEquals(20, proxy.multiply(2), "Вызов multiply(2) вернул не верное значение");
+        Assertions.assertEquals(30, proxy.multiply(3), "Вызов multiply(3) вернул не верное значение. Аргументы не учтены в ключе кэша");
+        Assertions.assertEquals(2, multiplierObject.callCount, "Оба вызова должны были отработать на исходном объекте");
+
+        System.out.println("Повторные вызовы с теми же аргументами должны браться из кэша");
+        Assertions.assertEquals(20, proxy.multiply(2), "Повторный вызов multiply(2) вернул не верное значение");
+        Assertions.assertEquals(30, proxy.multiply(3), "Повторный вызов multiply(3) вернул не верное значение");
+        Assertions.assertEquals(2, multiplierObject.callCount, "Повторные вызовы не должны были доходить до исходного объекта");
+
+        System.out.println("Меняем поле @CacheKey, значение должно пересчитаться");
+        multiplierObject.sourceData = 5;
+        Assertions.assertEquals(10, proxy.multiply(2), "Вызов multiply(2) после смены состояния вернул не верное значение");
+        Assertions.assertEquals(3, multiplierObject.callCount, "После смены состояния метод должен был отработать");
+
+        System.out.println("Поле-массив копируется в ключ, поля изменяемых типов отклоняются");
+        ArrayKeyClass arrayObject = new ArrayKeyClass();
+        FieldStateKeyExtractor extractor = new FieldStateKeyExtractor(ArrayKeyClass.class);
+        Object key = extractor.copyKey(extractor.extractKey(arrayObject));
+        arrayObject.factors[0] = 5;
+        Assertions.assertArrayEquals(new int[]{1, 2}, (int[]) key, "Изменение массива на месте изменило сохранённый ключ");
+        Assertions.assertThrows(IllegalArgumentException.class, () -> new FieldStateKeyExtractor(ListKeyClass.class),
+                "Поле @CacheKey изменяемого типа должно быть отклонено");
+
+        System.out.println("Состояние из нескольких полей, одно из которых массив, сравнивается по содержимому");
+        ScaledMultiplierClass scaledObject = new ScaledMultiplierClass();
+        Multiplier scaled = new CacheInvocationHandler<Multiplier>().cache(scaledObject);
+        for (int i = 0; i < 3; i++) {
+            Assertions.assertEquals(30, scaled.multiply(2), "Вызов multiply(2) вернул не верное значение");
+        }
+        Assertions.assertEquals(1, scaledObject.callCount, "Одинаковые вызовы должны были вычисляться один раз");
+        scaledObject.factors[0] = 4;
+        Assertions.assertEquals(60, scaled.multiply(2), "Изменение массива на месте не учтено в состоянии");
+        scaledObject.factors[0] = 1;
+        Assertions.assertEquals(30, scaled.multiply(2));
+        Assertions.assertEquals(2, scaledObject.callCount, "Сохранённый ключ должен хранить копию массива");
+    }
+
+    public static class ScaledMultiplierClass implements Multiplier {
+        @CacheKey
+        public int scale = 5;
+        @CacheKey
+        public int[] factors = {1, 2};
+        public int callCount;
+
+        @Override
+        @Cache(10000)
+        public long multiply(int multiplier) {
+            callCount++;
+            return (long) scale * (factors[0] + factors[1]) * multiplier;
+        }
+    }
+
+    public static class ArrayKeyClass {
+        @CacheKey
+        public int[] factors = {1, 2};
+    }
+
+    public static class ListKeyClass {
+        @CacheKey
+        public List<Integer> factors = new ArrayList<>();
+    }
+
+    public interface Versioned {
+        long version();
+    }
+
+    public static class VersionedClass implements Versioned {
+        public final AtomicLong version = new AtomicLong();
+
+        @Override
+        @Cache(value = 10000, refreshAfter = 100)
+        public long version() {
+            return version.incrementAndGet();
+        }
+
+        @Override
+        public String toString() {
+            return "VersionedClass";
+        }
+    }
+
+    @Test
+    @DisplayName("Тестирование асинхронного обновления значения до истечения времени жизни")
+    public void test4() throws Exception {
+        VersionedClass versionedObject = new VersionedClass();
+        CacheInvocationHandler<Versioned> handler = new CacheInvocationHandler<>();
+        handler.setRefreshExecutor(Runnable::run);
+        Versioned proxy = handler.cache(versionedObject);
+
+        System.out.println("Первый вызов вычисляет значение, второй берёт его из кэша");
+        Assertions.assertEquals(1, proxy.version(), "Первый вызов вернул не верное значение");
+        Assertions.assertEquals(1, proxy.version(), "Второй вызов должен был вернуть значение из кэша");
+
+        System.out.println("После refreshAfter обращение возвращает прежнее значение и запускает обновление");
+        Thread.sleep(150);
+        Assertions.assertEquals(1, proxy.version(), "Обращение после refreshAfter должно вернуть прежнее значение");
+        Assertions.assertEquals(2, versionedObject.version.get(), "Обновление значения не было запущено");
+
+        System.out.println("Следующее обращение получает обновлённое значение без вызова метода");
+        Assertions.assertEquals(2, proxy.version(), "Обновлённое значение не попало в кэш");
+        Assertions.assertEquals(2, versionedObject.version.get(), "Метод не должен был вызываться повторно");
+    }
+
+    @Test
+    @DisplayName("Тестирование статистики кэша и слушателя событий")
+    public void test5() throws Exception {
+        CachableClass cachableObject = new CachableClass();
+        Cachable proxy = new CacheInvocationHandler<Cachable>().cache(cachableObject);
+        CacheStats stats = CacheStats.of(CachableClass.class.getMethod("cachableMethod"));
+        long hits = stats.getHits();
+        long misses = stats.getMisses();
+        long invalidations = stats.getInvalidations();
+        long loads = stats.getLoads();
+        AtomicLong listenedHits = new AtomicLong();
+        CacheStatsListener listener = new CacheStatsListener() {
+            @Override
+            public void onHit(Method method) {
+                listenedHits.incrementAndGet();
+            }
+        };
+        CacheStats.addListener(listener);
+        try {
+            System.out.println("Первый вызов - промах, второй - попадание");
+            proxy.cachableMethod();
+            proxy.cachableMethod();
+            Assertions.assertEquals(misses + 1, stats.getMisses(), "Промах не учтён");
+            Assertions.assertEquals(hits + 1, stats.getHits(), "Попадание не учтено");
+            Assertions.assertEquals(loads + 1, stats.getLoads(), "Вычисление значения не учтено");
+            Assertions.assertEquals(1, listenedHits.get(), "Слушатель не получил событие попадания");
+
+            System.out.println("Вызов @Mutator учитывается как инвалидация");
+            proxy.setterMethod(3);
+            Assertions.assertEquals(invalidations + 1, stats.getInvalidations(), "Инвалидация не учтена");
+
+            System.out.println("MBean статистики регистрируется только для кэшируемых методов");
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            String prefix = "vtb.courses.stage2:type=CacheStats,class=" + ObjectName.quote(CachableClass.class.getName()) + ",method=";
+            Assertions.assertEquals(stats.getHits(), server.getAttribute(new ObjectName(prefix + ObjectName.quote("cachableMethod()")), "Hits"));
+            Assertions.assertFalse(server.isRegistered(new ObjectName(prefix + ObjectName.quote("setterMethod(Object)"))),
+                    "Статистика не должна создаваться для некэшируемого метода");
+        } finally {
+            CacheStats.removeListener(listener);
+        }
+    }
+
+    public interface Account {
+        long balance();
+        String owner();
+        void deposit(long amount);
+    }
+
+    public static class AccountClass implements Account {
+        public long amount;
+        public String name = "Иванов";
+        public int balanceCalls;
+        public int ownerCalls;
+
+        @Override
+        @Cache(10000)
+        public long balance() {
+            balanceCalls++;
+            return amount;
+        }
+
+        @Override
+        @Cache(value = 10000, group = "profile")
+        public String owner() {
+            ownerCalls++;
+            return name;
+        }
+
+        @Override
+        @Mutator(invalidates = "balance")
+        public void deposit(long amount) {
+            this.amount += amount;
+        }
+
+        @Override
+        public String toString() {
+            return "AccountClass";
+        }
+    }
+
+    public static class MisspelledAccountClass extends AccountClass implements Account {
+        @Override
+        @Mutator(invalidates = "balanse")
+        public void deposit(long amount) {
+            super.deposit(amount);
+        }
+    }
+
+    @Test
+    @DisplayName("Тестирование выборочной инвалидации методов через @Mutator(invalidates)")
+    public void test6() {
+        AccountClass accountObject = new AccountClass();
+        Account proxy = new CacheInvocationHandler<Account>().cache(accountObject);
+        proxy.balance();
+        proxy.owner();
+
+        System.out.println("deposit инвалидирует только balance, owner берётся из кэша");
+        proxy.deposit(100);
+        Assertions.assertEquals(100, proxy.balance(), "balance не пересчитан после deposit");
+        Assertions.assertEquals("Иванов", proxy.owner(), "owner вернул не верное значение");
+        Assertions.assertEquals(2, accountObject.balanceCalls, "balance должен был вычисляться дважды");
+        Assertions.assertEquals(1, accountObject.ownerCalls, "owner не должен был пересчитываться после deposit");
+
+        System.out.println("Опечатка в @Mutator(invalidates) обнаруживается при создании прокси");
+        Assertions.assertThrows(IllegalArgumentException.class, () -> new CacheInvocationHandler<Account>().cache(new MisspelledAccountClass()),
+                "Имя, которому не соответствует ни один метод или группа, должно отклоняться");
+    }
+
+    public interface Pricing {
+        long price(int quantity);
+    }
+
+    public static class PricingClass implements Pricing {
+        public static final AtomicLong calls = new AtomicLong();
+        @CacheKey
+        public final long basePrice;
+
+        public PricingClass(long basePrice) {
+            this.basePrice = basePrice;
+        }
+
+        @Override
+        @Cache(value = 10000, region = "pricing")
+        public long price(int quantity) {
+            calls.incrementAndGet();
+            return basePrice * quantity;
+        }
+    }
+
+    @Test
+    @DisplayName("Тестирование общего региона кэша для объектов с одинаковым состоянием")
+    public void test7() {
+        Pricing first = new CacheInvocationHandler<Pricing>().cache(new PricingClass(10));
+        Pricing second = new CacheInvocationHandler<Pricing>().cache(new PricingClass(10));
+        Pricing other = new CacheInvocationHandler<Pricing>().cache(new PricingClass(20));
+        long calls = PricingClass.calls.get();
+
+        System.out.println("Второй объект с тем же состоянием получает значение, вычисленное для первого");
+        Assertions.assertEquals(30, first.price(3));
+        Assertions.assertEquals(30, second.price(3), "Значение из общего региона не верное");
+        Assertions.assertEquals(calls + 1, PricingClass.calls.get(), "Значение для одинакового состояния вычислено повторно");
+        Assertions.assertEquals(60, other.price(3), "Объект с другим состоянием получил чужое значение");
+        Assertions.assertEquals(calls + 2, PricingClass.calls.get());
+
+        System.out.println("Регион освобождается, когда освобождены все его аренды");
+        CacheRegions.Lease firstLease = new CacheRegions.Lease();
+        CacheRegions.Lease secondLease = new CacheRegions.Lease();
+        CacheStorage storage = firstLease.acquire("lease", ExpiryMode.LAZY);
+        Assertions.assertSame(storage, secondLease.acquire("lease", ExpiryMode.LAZY), "Аренды одного региона получили разные хранилища");
+        Assertions.assertSame(storage, firstLease.acquire("lease", ExpiryMode.LAZY), "Повторная аренда того же региона");
+        firstLease.run();
+        Assertions.assertSame(storage, CacheRegions.get("lease"), "Регион освобождён, пока его использует вторая аренда");
+        secondLease.run();
+        Assertions.assertNull(CacheRegions.get("lease"), "Регион не освобождён после освобождения всех аренд");
+    }
+
+    public interface Product {
+        long cost();
+        void setPrice(long price);
+    }
+
+    public static class ProductClass implements Product {
+        public static final AtomicLong calls = new AtomicLong();
+        @CacheKey
+        public final long id;
+        public long price;
+
+        public ProductClass(long id, long price) {
+            this.id = id;
+            this.price = price;
+        }
+
+        @Override
+        @Cache(10000)
+        public long cost() {
+            calls.incrementAndGet();
+            if (price < 0) {
+                throw new IllegalStateException("Цена не задана");
+            }
+            return price;
+        }
+
+        @Override
+        @Mutator
+        public void setPrice(long price) {
+            this.price = price;
+        }
+    }
+
+    @Test
+    @DisplayName("Тестирование второго уровня кэша, общего для нескольких узлов")
+    public void test8() throws Exception {
+        LocalCacheTier tier = new LocalCacheTier();
+        CacheInvocationHandler<Product> firstHandler = new CacheInvocationHandler<>();
+        CacheInvocationHandler<Product> secondHandler = new CacheInvocationHandler<>();
+        firstHandler.setRemoteTier(tier, 1000);
+        secondHandler.setRemoteTier(tier, 1000);
+        Product first = firstHandler.cache(new ProductClass(1, 100));
+        Product second = secondHandler.cache(new ProductClass(1, 100));
+        long calls = ProductClass.calls.get();
+
+        System.out.println("Значение, вычисленное на первом узле, второй берёт из второго уровня");
+        Assertions.assertEquals(100, first.cost());
+        for (int i = 0; i < 50 && tier.size() == 0; i++) {
+            Thread.sleep(10);
+        }
+        Assertions.assertEquals(1, tier.size(), "Значение не записано во второй уровень");
+        Assertions.assertEquals(100, second.cost(), "Второй узел получил не верное значение");
+        Assertions.assertEquals(100, second.cost());
+        Assertions.assertEquals(calls + 1, ProductClass.calls.get(), "Второй узел не должен был вычислять значение");
+
+        System.out.println("@Mutator на первом узле сбрасывает значение на всех узлах");
+        first.setPrice(200);
+        for (int i = 0; i < 50 && tier.size() != 0; i++) {
+            Thread.sleep(10);
+        }
+        Assertions.assertEquals(0, tier.size(), "Значение не удалено из второго уровня");
+        Assertions.assertEquals(100, second.cost());
+        Assertions.assertEquals(calls + 2, ProductClass.calls.get(), "Второй узел должен был вычислить значение заново");
+
+        System.out.println("Изменённый узел не берёт из второго уровня значение, записанное для прежнего состояния");
+        for (int i = 0; i < 50 && tier.size() == 0; i++) {
+            Thread.sleep(10);
+        }
+        Assertions.assertEquals(1, tier.size(), "Значение второго узла не записано во второй уровень");
+        Assertions.assertEquals(200, first.cost(), "После @Mutator первый узел получил устаревшее значение из второго уровня");
+        Assertions.assertEquals(200, first.cost());
+        Assertions.assertEquals(calls + 3, ProductClass.calls.get(), "Первый узел должен был вычислить значение заново один раз");
+
+        System.out.println("Пустая строка - обычное состояние: её инвалидация не затрагивает значения объектов без состояния");
+        Method cost = ProductClass.class.getMethod("cost");
+        CacheStorage storage = new CacheStorage();
+        storage.setRemoteTier(tier, 1000);
+        storage.saveValue(cost, CompositeKey.of(cost, "", null), 1L, 0);
+        storage.saveValue(cost, CompositeKey.of(cost, null, null), 2L, 0);
+        storage.invalidate(cost, "");
+        for (int i = 0; i < 50 && storage.getSegment(cost).size() != 1; i++) {
+            Thread.sleep(10);
+        }
+        Assertions.assertThrows(IllegalArgumentException.class, () -> storage.getCachedValue(cost, CompositeKey.of(cost, "", null)),
+                "Значение для состояния \"\" не сброшено");
+        Assertions.assertEquals(2L, storage.getCachedValue(cost, CompositeKey.of(cost, null, null)),
+                "Сброшено значение объекта без состояния");
+    }
+
+    @Test
+    @DisplayName("Тестирование пакетного вызова кэшируемого метода у множества прокси")
+    public void test9() throws Throwable {
+        List<Product> products = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            products.add(new CacheInvocationHandler<Product>().cache(new ProductClass(i, i * 10L)));
+        }
+        Method cost = Product.class.getMethod("cost");
+        long calls = ProductClass.calls.get();
+
+        System.out.println("Первый пакетный вызов вычисляет все значения");
+        List<Object> results = CacheInvocationHandler.getAll(cost, products);
+        for (int i = 0; i < 20; i++) {
+            Assertions.assertEquals(i * 10L, results.get(i), "Результат " + i + " не соответствует своему объекту");
+        }
+        Assertions.assertEquals(calls + 20, ProductClass.calls.get(), "Каждый промах должен был вычисляться один раз");
+
+        System.out.println("Повторный пакетный и одиночный вызовы берут значения из кэша");
+        Assertions.assertEquals(results, CacheInvocationHandler.getAll(cost, products));
+        Assertions.assertEquals(50L, products.get(5).cost());
+        Assertions.assertEquals(calls + 20, ProductClass.calls.get(), "Значения пакетного вызова не попали в кэш");
+
+        System.out.println("Ошибка одного элемента пробрасывается, остальные значения попадают в кэш");
+        Product broken = new CacheInvocationHandler<Product>().cache(new ProductClass(100, -1));
+        List<Product> withBroken = List.of(
+                new CacheInvocationHandler<Product>().cache(new ProductClass(101, 1010)),
+                broken,
+                new CacheInvocationHandler<Product>().cache(new ProductClass(102, 1020)));
+        calls = ProductClass.calls.get();
+        Assertions.assertThrows(IllegalStateException.class, () -> CacheInvocationHandler.getAll(cost, withBroken));
+        Assertions.assertEquals(calls + 3, ProductClass.calls.get());
+        Assertions.assertEquals(1010L, withBroken.get(0).cost());
+        Assertions.assertEquals(1020L, withBroken.get(2).cost());
+        Assertions.assertEquals(calls + 3, ProductClass.calls.get(), "Значения без ошибки должны были попасть в кэш");
+        Assertions.assertThrows(IllegalStateException.class, broken::cost);
+        Assertions.assertEquals(calls + 4, ProductClass.calls.get(), "Ошибка не должна кэшироваться");
+
+        System.out.println("Прокси с одинаковым состоянием в общем регионе вычисляются один раз");
+        Method price = Pricing.class.getMethod("price", int.class);
+        List<Pricing> pricings = List.of(
+                new CacheInvocationHandler<Pricing>().cache(new PricingClass(11)),
+                new CacheInvocationHandler<Pricing>().cache(new PricingClass(11)),
+                new CacheInvocationHandler<Pricing>().cache(new PricingClass(21)));
+        long priceCalls = PricingClass.calls.get();
+        Assertions.assertEquals(List.of(77L, 77L, 147L), CacheInvocationHandler.getAll(price, pricings, 7));
+        Assertions.assertEquals(priceCalls + 2, PricingClass.calls.get(), "Одинаковые ключи общего региона должны вычисляться один раз");
+    }
+
+    public interface QuoteService {
+        CompletableFuture<Long> quote(int id);
+        CompletableFuture<Long> boundedQuote(int id);
+    }
+
+    public static class QuoteServiceClass implements QuoteService {
+        public final List<CompletableFuture<Long>> requests = new ArrayList<>();
+
+        @Override
+        @Cache(10000)
+        public CompletableFuture<Long> quote(int id) {
+            CompletableFuture<Long> request = new CompletableFuture<>();
+            requests.add(request);
+            return request;
+        }
+
+        @Override
+        @Cache(value = 10000, loadTimeout = 100)
+        public CompletableFuture<Long> boundedQuote(int id) {
+            return quote(id);
+        }
+
+        @Override
+        public String toString() {
+            return "QuoteServiceClass";
+        }
+    }
+
+    @Test
+    @DisplayName("Тестирование кэширования методов, возвращающих CompletableFuture")
+    public void test10() throws Exception {
+        QuoteServiceClass serviceObject = new QuoteServiceClass();
+        QuoteService proxy = new CacheInvocationHandler<QuoteService>().cache(serviceObject);
+
+        System.out.println("Пока значение вычисляется, повторные вызовы ждут тот же future без вызова метода");
+        CompletableFuture<Long> first = proxy.quote(1);
+        CompletableFuture<Long> second = proxy.quote(1);
+        Assertions.assertEquals(1, serviceObject.requests.size(), "Одновременные вызовы должны были объединиться");
+        Assertions.assertFalse(first.isDone() || second.isDone(), "Вызов не должен был дожидаться результата");
+        serviceObject.requests.get(0).complete(42L);
+        Assertions.assertEquals(42L, first.get());
+        Assertions.assertEquals(42L, second.get());
+
+        System.out.println("Результат завершённого future берётся из кэша");
+        CompletableFuture<Long> cached = proxy.quote(1);
+        Assertions.assertTrue(cached.isDone(), "Значение из кэша должно возвращаться завершённым future");
+        Assertions.assertEquals(42L, cached.get());
+        Assertions.assertEquals(1, serviceObject.requests.size(), "Метод не должен был вызываться повторно");
+
+        System.out.println("Завершившийся ошибкой future не кэшируется");
+        CompletableFuture<Long> failed = proxy.quote(2);
+        serviceObject.requests.get(1).completeExceptionally(new IllegalStateException("Сервис недоступен"));
+        ExecutionException e = Assertions.assertThrows(ExecutionException.class, failed::get, "Вызывающий должен был получить ошибку");
+        Assertions.assertInstanceOf(IllegalStateException.class, e.getCause());
+        proxy.quote(2);
+        Assertions.assertEquals(3, serviceObject.requests.size(), "После ошибки значение должно вычисляться заново");
+
+        System.out.println("Незавершающийся future не блокирует ключ дольше loadTimeout");
+        CompletableFuture<Long> hanging = proxy.boundedQuote(3);
+        e = Assertions.assertThrows(ExecutionException.class, hanging::get, "Вызывающий должен был получить ошибку по истечении loadTimeout");
+        Assertions.assertInstanceOf(TimeoutException.class, e.getCause());
+        Assertions.assertFalse(serviceObject.requests.get(3).isDone(), "Future метода не должен завершаться кэшем");
+        proxy.boundedQuote(3);
+        Assertions.assertEquals(5, serviceObject.requests.size(), "После истечения loadTimeout значение должно вычисляться заново");
+    }
+
+    public interface Matrix {
+        long sum();
+        void set(int i, long value);
+    }
+
+    public static class MatrixClass implements Matrix, StateVersioned {
+        private final long[] cells = new long[1000];
+        private long version;
+        public int calls;
+        public int toStringCalls;
+
+        @Override
+        @Cache(10000)
+        public long sum() {
+            calls++;
+            long sum = 0;
+            for (long cell : cells) {
+                sum += cell;
+            }
+            return sum;
+        }
+
+        @Override
+        @Mutator
+        public void set(int i, long value) {
+            cells[i] = value;
+            version++;
+        }
+
+        @Override
+        public long stateVersion() {
+            return version;
+        }
+
+        @Override
+        public String toString() {
+            toStringCalls++;
+            return Arrays.toString(cells);
+        }
+    }
+
+    @Test
+    @DisplayName("Тестирование состояния объекта по версии StateVersioned")
+    public void test11() throws Exception {
+        MatrixClass matrixObject = new MatrixClass();
+        Matrix proxy = new CacheInvocationHandler<Matrix>().cache(matrixObject);
+
+        System.out.println("Повторный вызов берёт значение из кэша без построения строки состояния");
+        Assertions.assertEquals(0, proxy.sum());
+        Assertions.assertEquals(0, proxy.sum());
+        Assertions.assertEquals(1, matrixObject.calls, "Значение должно было браться из кэша");
+        Assertions.assertEquals(0, matrixObject.toStringCalls, "Для StateVersioned не должен вызываться toString()");
+
+        System.out.println("Изменение объекта меняет версию и значение вычисляется заново");
+        proxy.set(1, 5);
+        Assertions.assertEquals(5, proxy.sum());
+        Assertions.assertEquals(5, proxy.sum());
+        Assertions.assertEquals(2, matrixObject.calls, "После изменения значение должно было вычислиться один раз");
+        Assertions.assertEquals(0, matrixObject.toStringCalls, "Для StateVersioned не должен вызываться toString()");
+
+        System.out.println("Версия-счётчик не сравнивается между узлами второго уровня");
+        CacheInvocationHandler<Matrix> remoteHandler = new CacheInvocationHandler<>();
+        remoteHandler.setRemoteTier(new LocalCacheTier(), 100);
+        Assertions.assertThrows(IllegalStateException.class, () -> remoteHandler.cache(new MatrixClass()),
+                "Версия-счётчик не должна использоваться со вторым уровнем кэша");
+        CacheInvocationHandler<Matrix> localHandler = new CacheInvocationHandler<>();
+        localHandler.cache(new MatrixClass());
+        Assertions.assertThrows(IllegalStateException.class, () -> localHandler.setRemoteTier(new LocalCacheTier(), 100),
+                "Второй уровень не должен подключаться к прокси с версией-счётчиком");
+
+        System.out.println("Версия, определяющая содержимое, используется со вторым уровнем");
+        LocalCacheTier tier = new LocalCacheTier();
+        CacheInvocationHandler<Matrix> contentHandler = new CacheInvocationHandler<>();
+        contentHandler.setRemoteTier(tier, 1000);
+        Matrix content = contentHandler.cache(new ContentMatrixClass());
+        content.set(1, 7);
+        Assertions.assertEquals(7, content.sum());
+        for (int i = 0; i < 50 && tier.size() == 0; i++) {
+            Thread.sleep(10);
+        }
+
+        System.out.println("Матрица с тем же содержимым на другом узле получает ту же версию и берёт значение из второго уровня");
+        ContentMatrixClass sameObject = new ContentMatrixClass();
+        sameObject.set(1, 7);
+        CacheInvocationHandler<Matrix> sameHandler = new CacheInvocationHandler<>();
+        sameHandler.setRemoteTier(tier, 1000);
+        Matrix same = sameHandler.cache(sameObject);
+        Assertions.assertEquals(7, same.sum());
+        Assertions.assertEquals(0, sameObject.calls, "Значение для того же содержимого должно было взяться из второго уровня");
+    }
+
+    // версия - номер неизменяемого снимка содержимого в общем реестре: одинаковое содержимое получает один номер,
+    // разное - разные номера. Хэш содержимого для этого не годится: у разных матриц он может совпасть
+    public static class ContentMatrixClass extends MatrixClass implements Matrix {
+        private static final Map<List<Long>, Long> SNAPSHOTS = new ConcurrentHashMap<>();
+        private static final AtomicLong NEXT_SNAPSHOT = new AtomicLong();
+        private long snapshot = snapshot();
+
+        @Override
+        @Mutator
+        public void set(int i, long value) {
+            super.set(i, value);
+            snapshot = snapshot();
+        }
+
+        private long snapshot() {
+            List<Long> content = Arrays.stream(super.cells).boxed().collect(Collectors.toList());
+            return SNAPSHOTS.computeIfAbsent(content, c -> NEXT_SNAPSHOT.getAndIncrement());
+        }
+
+        @Override
+        public long stateVersion() {
+            return snapshot;
+        }
+
+        @Override
+        public boolean versionIdentifiesContent() {
+            return true;
+        }
+    }
 }
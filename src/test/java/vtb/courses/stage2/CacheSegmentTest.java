@@ -0,0 +1,240 @@
+package vtb.courses.stage2;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+public class CacheSegmentTest {
+
+    public static class TextWeigher implements Weigher {
+        @Override
+        public long weigh(CompositeKey key, Object value) {
+            return ((String) value).length();
+        }
+    }
+
+    public static class BoundedClass {
+        @Cache(maxSize = 100)
+        public long square(int i) {
+            return (long) i * i;
+        }
+
+        @Cache(maxWeight = 1000, weigher = TextWeigher.class)
+        public String text(int i) {
+            return "x".repeat(100);
+        }
+
+        @Cache(offHeapThreshold = 1024, offHeapCapacity = 256 * 1024)
+        public byte[] blob(int i) {
+            return new byte[10000];
+        }
+    }
+
+    private static CompositeKey key(Method method, int i) {
+        return CompositeKey.of(method, "state", new Object[]{i});
+    }
+
+    @Test
+    @DisplayName("Количество значений метода не превышает maxSize")
+    public void maxSize() throws Exception {
+        Method method = BoundedClass.class.getMethod("square", int.class);
+        CacheStorage storage = new CacheStorage();
+        for (int i = 0; i < 10000; i++) {
+            storage.saveValue(method, key(method, i), (long) i * i, 0);
+            Assertions.assertTrue(storage.getSegment(method).size() <= 100, "Превышено ограничение maxSize на шаге " + i);
+        }
+    }
+
+    @Test
+    @DisplayName("Часто используемые значения переживают однократный проход по множеству новых ключей")
+    public void frequentValuesSurviveScan() throws Exception {
+        Method method = BoundedClass.class.getMethod("square", int.class);
+        CacheStorage storage = new CacheStorage();
+        for (int i = 0; i < 10; i++) {
+            storage.saveValue(method, key(method, i), (long) i * i, 0);
+        }
+        for (int n = 0; n < 10; n++) {
+            for (int i = 0; i < 10; i++) {
+                storage.getCachedValue(method, key(method, i));
+            }
+        }
+
+        System.out.println("Записываем 1000 ключей, к которым больше никто не обратится");
+        for (int i = 1000; i < 2000; i++) {
+            storage.saveValue(method, key(method, i), (long) i * i, 0);
+        }
+
+        for (int i = 0; i < 10; i++) {
+            Assertions.assertEquals((long) i * i, storage.getCachedValue(method, key(method, i)),
+                    "Часто используемое значение " + i + " вытеснено из кэша");
+        }
+    }
+
+    @Test
+    @DisplayName("Суммарный вес значений метода не превышает maxWeight")
+    public void maxWeight() throws Exception {
+        Method method = BoundedClass.class.getMethod("text", int.class);
+        CacheStorage storage = new CacheStorage();
+        for (int i = 0; i < 100; i++) {
+            storage.saveValue(method, key(method, i), "x".repeat(100), 0);
+            Assertions.assertTrue(storage.getSegment(method).weight() <= 1000, "Превышено ограничение maxWeight на шаге " + i);
+        }
+        Assertions.assertEquals(10, storage.getSegment(method).size(), "В кэше должно остаться ровно 10 значений весом 100");
+    }
+
+    @Test
+    @DisplayName("Очистка затрагивает только значения, время жизни которых истекло")
+    public void timerWheelExpiry() throws Exception {
+        Method shortLived = CachableTest.MultiplierClass.class.getMethod("multiply", int.class);
+        Method eternal = Cachable.class.getMethod("cachableMethod");
+        CacheStorage storage = new CacheStorage();
+        for (int i = 0; i < 1000; i++) {
+            storage.saveValue(shortLived, key(shortLived, i), (long) i * i, 50);
+            storage.saveValue(eternal, key(eternal, i), (long) i, 0);
+        }
+
+        Thread.sleep(120);
+        long scanned = storage.clearTimeoutedValues();
+
+        Assertions.assertEquals(0, storage.getSegment(shortLived).size(), "Значения с истёкшим временем жизни не удалены");
+        Assertions.assertEquals(1000, storage.getSegment(eternal).size(), "Удалены значения без ограничения времени жизни");
+        Assertions.assertEquals(1000, scanned, "Очистка просмотрела лишние значения: " + scanned);
+        Assertions.assertEquals(0, storage.getSegment(eternal).timerBuckets(),
+                "Колесо таймеров метода без ограничения времени жизни не должно создавать корзины");
+        Assertions.assertTrue(storage.getSegment(shortLived).timerBuckets() < 64,
+                "Созданы корзины, в которые не попало ни одно значение");
+    }
+
+    @Test
+    @DisplayName("В режиме LAZY устаревшие значения не возвращаются и удаляются при записи и чтении без потока очистки")
+    public void lazyExpiry() throws Exception {
+        Method method = CachableTest.MultiplierClass.class.getMethod("multiply", int.class);
+        CacheStorage storage = new CacheStorage(ExpiryMode.LAZY);
+        for (int i = 0; i < 100; i++) {
+            storage.saveValue(method, key(method, i), (long) i, 50);
+        }
+        Assertions.assertEquals(7L, storage.getCachedValue(method, key(method, 7)), "Значение должно читаться до истечения времени жизни");
+
+        Thread.sleep(120);
+        Assertions.assertThrows(IllegalArgumentException.class, () -> storage.getCachedValue(method, key(method, 7)),
+                "Устаревшее значение должно считаться промахом");
+
+        System.out.println("Запись продвигает колесо таймеров сегмента и удаляет истёкшие значения");
+        storage.saveValue(method, key(method, 1000), 1000L, 50);
+        Assertions.assertEquals(1, storage.getSegment(method).size(), "Истёкшие значения не удалены при записи");
+
+        System.out.println("Чтение тоже продвигает колесо: значения метода, который только читают, удаляются");
+        Thread.sleep(120);
+        Assertions.assertThrows(IllegalArgumentException.class, () -> storage.getCachedValue(method, key(method, 1000)));
+        Assertions.assertEquals(0, storage.getSegment(method).size(), "Истёкшие значения не удалены при чтении");
+    }
+
+    @Test
+    @DisplayName("Крупные значения хранятся вне кучи в пределах offHeapCapacity")
+    public void offHeap() throws Exception {
+        Method method = BoundedClass.class.getMethod("blob", int.class);
+        CacheStorage storage = new CacheStorage();
+        for (int i = 0; i < 100; i++) {
+            byte[] blob = new byte[10000];
+            blob[0] = (byte) i;
+            storage.saveValue(method, key(method, i), blob, 0);
+            Assertions.assertTrue(storage.getSegment(method).offHeapBytes() <= 256 * 1024, "Превышено ограничение offHeapCapacity на шаге " + i);
+        }
+        byte[] last = (byte[]) storage.getCachedValue(method, key(method, 99));
+        Assertions.assertEquals(10000, last.length, "Значение вне кучи восстановлено не полностью");
+        Assertions.assertEquals(99, last[0], "Из памяти вне кучи прочитано значение другого ключа");
+        Assertions.assertThrows(IllegalArgumentException.class, () -> storage.getCachedValue(method, key(method, 0)),
+                "Самое старое значение должно быть вытеснено при нехватке памяти вне кучи");
+
+        System.out.println("Значения меньше offHeapThreshold остаются в куче");
+        long offHeapBytes = storage.getSegment(method).offHeapBytes();
+        byte[] small = new byte[10];
+        storage.saveValue(method, key(method, 1000), small, 0);
+        Assertions.assertEquals(offHeapBytes, storage.getSegment(method).offHeapBytes(), "Небольшое значение вынесено из кучи");
+        Assertions.assertSame(small, storage.getCachedValue(method, key(method, 1000)), "Небольшое значение должно возвращаться без копирования");
+
+        System.out.println("Оценка размера не меньше фактического размера сериализованного значения");
+        ValueSerializer serializer = new ValueSerializer.Java();
+        for (Object value : new Object[]{42, Long.MAX_VALUE, 1.5d, true, 'ж', "строка", "", new int[100], new byte[10], new double[3]}) {
+            Assertions.assertTrue(serializer.estimateSize(value) >= serializer.serialize(value).length,
+                    "Оценка размера меньше фактической для " + value.getClass().getSimpleName());
+        }
+        Assertions.assertEquals(-1, serializer.estimateSize(new java.util.ArrayList<>()), "Размер списка нельзя оценить без сериализации");
+    }
+
+    @Test
+    @DisplayName("Значения восстанавливаются из снимка после перезапуска, устаревшие и повреждённые записи пропускаются")
+    public void snapshot(@TempDir Path dir) throws Exception {
+        Method method = BoundedClass.class.getMethod("square", int.class);
+        Method shortLived = CachableTest.MultiplierClass.class.getMethod("multiply", int.class);
+        Path file = dir.resolve("cache.snapshot");
+        CacheStorage storage = new CacheStorage();
+        for (int i = 0; i < 10; i++) {
+            storage.saveValue(method, key(method, i), (long) i * i, 0);
+        }
+        storage.saveValue(shortLived, key(shortLived, 1), 1L, 50);
+        new CacheSnapshot(file).save(storage);
+
+        System.out.println("Новое хранилище берёт значения из снимка при промахе");
+        Thread.sleep(120);
+        CacheStorage restarted = new CacheStorage();
+        CacheSnapshot restartedSnapshot = new CacheSnapshot(file);
+        restarted.setSnapshot(restartedSnapshot);
+        for (int i = 0; i < 10; i++) {
+            Assertions.assertEquals((long) i * i, restarted.getCachedValue(method, key(method, i)), "Значение " + i + " не восстановлено");
+        }
+        Assertions.assertThrows(IllegalArgumentException.class, () -> restarted.getCachedValue(shortLived, key(shortLived, 1)),
+                "Значение с истёкшим временем жизни не должно восстанавливаться");
+
+        System.out.println("Снимок нельзя подключить ко второму хранилищу");
+        Assertions.assertThrows(IllegalStateException.class, () -> new CacheStorage().setSnapshot(restartedSnapshot),
+                "Снимок уже подключён к другому хранилищу");
+        Assertions.assertThrows(IllegalStateException.class, () -> restartedSnapshot.saveEvery(new CacheStorage(), 1000),
+                "Периодическая запись другого хранилища в подключённый снимок");
+
+        System.out.println("close() записывает снимок подключённого хранилища и без периодической записи");
+        Path closed = dir.resolve("closed.snapshot");
+        CacheSnapshot closedSnapshot = new CacheSnapshot(closed);
+        CacheStorage closing = new CacheStorage();
+        closing.saveValue(method, key(method, 100), 10000L, 0);
+        closing.setSnapshot(closedSnapshot);
+        closedSnapshot.close();
+        CacheStorage reopened = new CacheStorage();
+        reopened.setSnapshot(new CacheSnapshot(closed));
+        Assertions.assertEquals(10000L, reopened.getCachedValue(method, key(method, 100)), "Снимок не записан при close()");
+
+        System.out.println("Портим последний байт файла - последняя запись не проходит проверку контрольной суммы");
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            ByteBuffer last = ByteBuffer.allocate(1);
+            channel.read(last, channel.size() - 1);
+            last.put(0, (byte) (last.get(0) ^ 0xFF)).rewind();
+            channel.write(last, channel.size() - 1);
+        }
+        CacheStorage corrupted = new CacheStorage();
+        corrupted.setSnapshot(new CacheSnapshot(file));
+        int restored = 0;
+        for (int i = 0; i < 10; i++) {
+            try {
+                Assertions.assertEquals((long) i * i, corrupted.getCachedValue(method, key(method, i)), "Восстановлено не верное значение");
+                restored++;
+            } catch (IllegalArgumentException e) {
+                // запись повреждена
+            }
+        }
+        Assertions.assertEquals(9, restored, "Должна быть пропущена только повреждённая запись");
+
+        System.out.println("Файл чужого формата не используется");
+        Files.write(file, new byte[100]);
+        CacheStorage foreign = new CacheStorage();
+        foreign.setSnapshot(new CacheSnapshot(file));
+        Assertions.assertThrows(IllegalArgumentException.class, () -> foreign.getCachedValue(method, key(method, 1)));
+    }
+}
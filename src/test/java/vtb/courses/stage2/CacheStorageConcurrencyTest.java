@@ -0,0 +1,243 @@
+package vtb.courses.stage2;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+
+public class CacheStorageConcurrencyTest {
+
+    private static final int KEYS = 1024;
+    private static final long RUN_MILLIS = 300;
+
+    @Test
+    @DisplayName("Чтение и запись из 1/4/16 потоков при конкурентной очистке возвращают значения своих ключей")
+    public void concurrentAccess() throws Exception {
+        Method method = Cachable.class.getMethod("cachableMethod");
+        CompositeKey[] keys = keys(method);
+
+        // пропускную способность измеряет StorageBenchmark в модуле benchmarks, здесь проверяется только корректность
+        for (int threads : new int[]{1, 4, 16}) {
+            CacheStorage storage = filledStorage(method, keys);
+            ExecutorService executor = Executors.newFixedThreadPool(threads + 1);
+            try {
+                long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(RUN_MILLIS);
+                // параллельно с чтением и записью постоянно работает очистка, как это делает CacheCleaner
+                Future<?> cleaner = executor.submit(() -> {
+                    while (System.nanoTime() < deadline) {
+                        storage.clearTimeoutedValues();
+                    }
+                });
+                List<Future<Long>> workers = new ArrayList<>();
+                for (int t = 0; t < threads; t++) {
+                    workers.add(executor.submit(() -> {
+                        ThreadLocalRandom random = ThreadLocalRandom.current();
+                        long operations = 0;
+                        while (System.nanoTime() < deadline) {
+                            int i = random.nextInt(KEYS);
+                            // каждая 16-я операция - запись, остальные - чтение
+                            if ((operations & 15) == 0) {
+                                storage.saveValue(method, keys[i], (long) i * i, 60000);
+                            } else {
+                                Assertions.assertEquals((long) i * i, storage.getCachedValue(method, keys[i]),
+                                        "Из кэша прочитано значение другого ключа");
+                            }
+                            operations++;
+                        }
+                        return operations;
+                    }));
+                }
+
+                for (Future<Long> worker : workers) {
+                    Assertions.assertTrue(worker.get() > 0, "Поток не выполнил ни одной операции с кэшем");
+                }
+                cleaner.get();
+                Assertions.assertEquals(KEYS, storage.getSegment(method).size(), "Значения без истёкшего времени жизни потеряны");
+            } finally {
+                executor.shutdownNow();
+            }
+        }
+    }
+
+    @Test
+    @DisplayName("Чтение не ждёт блокировку сегмента, которую держит запись")
+    public void readsDoNotWaitForSegmentLock() throws Exception {
+        Method method = Cachable.class.getMethod("cachableMethod");
+        CompositeKey[] keys = keys(method);
+        CacheStorage storage = filledStorage(method, keys);
+        Field lockField = CacheSegment.class.getDeclaredField("lock");
+        lockField.setAccessible(true);
+        ReentrantLock lock = (ReentrantLock) lockField.get(storage.getSegment(method));
+
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        lock.lock();
+        try {
+            System.out.println("Блокировка сегмента занята, читаем все значения из другого потока");
+            Future<?> reader = executor.submit(() -> {
+                for (int i = 0; i < KEYS; i++) {
+                    Assertions.assertEquals((long) i * i, storage.getCachedValue(method, keys[i]));
+                }
+            });
+            reader.get(5, TimeUnit.SECONDS);
+
+            System.out.println("Запись того же сегмента ждёт освобождения блокировки");
+            Future<?> writer = executor.submit(() -> storage.saveValue(method, keys[0], 0L, 60000));
+            Assertions.assertThrows(TimeoutException.class, () -> writer.get(100, TimeUnit.MILLISECONDS),
+                    "Запись не должна выполняться под чужой блокировкой сегмента");
+        } finally {
+            lock.unlock();
+            executor.shutdown();
+        }
+        Assertions.assertTrue(executor.awaitTermination(5, TimeUnit.SECONDS), "Запись не завершилась после освобождения блокировки");
+    }
+
+    private static CompositeKey[] keys(Method method) {
+        CompositeKey[] keys = new CompositeKey[KEYS];
+        for (int i = 0; i < KEYS; i++) {
+            keys[i] = CompositeKey.of(method, i, null);
+        }
+        return keys;
+    }
+
+    private static CacheStorage filledStorage(Method method, CompositeKey[] keys) {
+        CacheStorage storage = new CacheStorage();
+        for (int i = 0; i < KEYS; i++) {
+            storage.saveValue(method, keys[i], (long) i * i, 60000);
+        }
+        return storage;
+    }
+
+    public interface SlowService {
+        long compute();
+    }
+
+    public static class SlowServiceClass implements SlowService {
+        public final AtomicInteger calls = new AtomicInteger();
+        public volatile boolean fail;
+
+        @Override
+        @Cache(10000)
+        public long compute() {
+            calls.incrementAndGet();
+            try {
+                Thread.sleep(300);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            if (fail) {
+                throw new IllegalStateException("Ошибка вычисления");
+            }
+            return 42;
+        }
+
+        @Override
+        public String toString() {
+            return "SlowServiceClass{fail=" + fail + "}";
+        }
+    }
+
+    private static List<Future<Long>> callConcurrently(ExecutorService executor, SlowService proxy, int threads) {
+        CountDownLatch start = new CountDownLatch(1);
+        List<Future<Long>> results = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            results.add(executor.submit(() -> {
+                start.await();
+                return proxy.compute();
+            }));
+        }
+        start.countDown();
+        return results;
+    }
+
+    @Test
+    @DisplayName("Одновременные промахи по одному ключу вычисляются одним вызовом")
+    public void singleFlight() throws Exception {
+        SlowServiceClass slowObject = new SlowServiceClass();
+        CacheInvocationHandler<SlowService> handler = new CacheInvocationHandler<>();
+        SlowService proxy = handler.cache(slowObject);
+        CacheStats stats = CacheStats.of(SlowServiceClass.class.getMethod("compute"));
+        long coalescedBefore = stats.getCoalescedCalls();
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            for (Future<Long> result : callConcurrently(executor, proxy, 8)) {
+                Assertions.assertEquals(42, result.get(), "Ожидавший поток получил не верное значение");
+            }
+            Assertions.assertEquals(1, slowObject.calls.get(), "Метод должен был вызваться один раз");
+            Assertions.assertEquals(7, handler.getCoalescedCalls(), "Не верное количество объединённых вызовов");
+            Assertions.assertTrue(stats.getCoalescedCalls() - coalescedBefore >= 7, "Объединённые вызовы не учтены в статистике метода");
+
+            System.out.println("Исключение вычисляющего потока получают все ожидавшие, в кэш оно не попадает");
+            slowObject.fail = true;
+            for (Future<Long> result : callConcurrently(executor, proxy, 8)) {
+                ExecutionException e = Assertions.assertThrows(ExecutionException.class, result::get);
+                Assertions.assertInstanceOf(IllegalStateException.class, e.getCause(), "Ожидавший поток получил не то исключение");
+            }
+            Assertions.assertEquals(2, slowObject.calls.get(), "Ошибочное вычисление должно было выполниться один раз");
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    public interface Warehouse {
+        long stock();
+    }
+
+    public static class WarehouseClass implements Warehouse {
+        public static final AtomicInteger calls = new AtomicInteger();
+        @CacheKey
+        public final int id;
+
+        public WarehouseClass(int id) {
+            this.id = id;
+        }
+
+        @Override
+        @Cache(10000)
+        public long stock() {
+            calls.incrementAndGet();
+            try {
+                Thread.sleep(300);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return id * 10L;
+        }
+    }
+
+    @Test
+    @DisplayName("Пакетный вызов дожидается значения, которое уже вычисляет другой поток, и не вычисляет его повторно")
+    public void getAllAwaitsInFlight() throws Throwable {
+        Warehouse first = new CacheInvocationHandler<Warehouse>().cache(new WarehouseClass(1));
+        Warehouse second = new CacheInvocationHandler<Warehouse>().cache(new WarehouseClass(2));
+        int calls = WarehouseClass.calls.get();
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Future<Long> single = executor.submit(first::stock);
+            while (WarehouseClass.calls.get() == calls) {
+                Thread.sleep(5);
+            }
+
+            System.out.println("Значение первого объекта уже вычисляется, пакетный вызов его ждёт");
+            List<Object> results = CacheInvocationHandler.getAll(Warehouse.class.getMethod("stock"), List.of(first, second));
+            Assertions.assertEquals(List.of(10L, 20L), results, "Пакетный вызов вернул не верные значения");
+            Assertions.assertEquals(10L, single.get(), "Одиночный вызов вернул не верное значение");
+            Assertions.assertEquals(calls + 2, WarehouseClass.calls.get(), "Значение, которое уже вычислялось, вычислено повторно");
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+}